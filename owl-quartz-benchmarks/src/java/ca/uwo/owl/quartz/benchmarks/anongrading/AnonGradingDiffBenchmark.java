@@ -0,0 +1,94 @@
+package ca.uwo.owl.quartz.benchmarks.anongrading;
+
+import ca.uwo.owl.quartz.jobs.anongrading.AnonGradingCSVDelta;
+import ca.uwo.owl.quartz.jobs.anongrading.AnonGradingCSVRow;
+import ca.uwo.owl.quartz.jobs.anongrading.AnonGradingDiff;
+import ca.uwo.owl.quartz.jobs.anongrading.AnonGradingDuplicateIndex;
+import ca.uwo.owl.quartz.jobs.anongrading.AnonGradingRowStore;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import org.sakaiproject.service.gradebook.shared.owl.anongrading.OwlAnonGradingID;
+
+/**
+ * Diffing the CSV against the database rows: the in-memory diff (indexing the database rows and the diff loop), the merge join used when sorting on disk,
+ * and the delta against the previous CSV
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class AnonGradingDiffBenchmark extends AnonGradingFeedState
+{
+	private AnonGradingRowStore csvRows;
+	private List<AnonGradingCSVRow> sortedCsvRows;
+	private List<OwlAnonGradingID> dbRows;
+	private AnonGradingRowStore previousCsvRows;
+
+	//the diff updates the database rows in place, so their grading IDs are restored before each invocation
+	private int[] dbGradingIDs;
+
+	@Setup(Level.Trial)
+	public void loadFeed()
+	{
+		AnonGradingFeedGenerator generator = generator();
+		csvRows = new AnonGradingDuplicateIndex(AnonGradingFeedGenerator.toStore(generator.generateRows())).getUniqueRows();
+		sortedCsvRows = csvRows.toRows();
+		sortedCsvRows.sort((a, b) -> a.getSectionEid().equals(b.getSectionEid()) ? a.getUserEid().compareTo(b.getUserEid()) : a.getSectionEid().compareTo(b.getSectionEid()));
+
+		dbRows = generator.generateDatabaseRows(csvRows.toRows(), changeRate);
+		dbGradingIDs = new int[dbRows.size()];
+		List<AnonGradingCSVRow> previousRows = new ArrayList<>(dbRows.size());
+		for (int i = 0; i < dbRows.size(); i++)
+		{
+			OwlAnonGradingID dbRow = dbRows.get(i);
+			dbGradingIDs[i] = dbRow.getAnonGradingID();
+			previousRows.add(new AnonGradingCSVRow(dbRow.getSectionEid(), dbRow.getUserEid(), dbRow.getAnonGradingID()));
+		}
+		//last night's CSV is what the database was synced to
+		previousCsvRows = AnonGradingFeedGenerator.toStore(previousRows);
+	}
+
+	@Setup(Level.Invocation)
+	public void resetDatabaseRows()
+	{
+		for (int i = 0; i < dbGradingIDs.length; i++)
+		{
+			dbRows.get(i).setAnonGradingID(dbGradingIDs[i]);
+		}
+	}
+
+	@Benchmark
+	public AnonGradingDiff diff()
+	{
+		return AnonGradingDiff.compute(csvRows, dbRows);
+	}
+
+	@Benchmark
+	public AnonGradingDiff diffSorted()
+	{
+		return AnonGradingDiff.computeSorted(sortedCsvRows, dbRows);
+	}
+
+	@Benchmark
+	public AnonGradingCSVDelta csvDelta()
+	{
+		return AnonGradingCSVDelta.compute(previousCsvRows, csvRows);
+	}
+}
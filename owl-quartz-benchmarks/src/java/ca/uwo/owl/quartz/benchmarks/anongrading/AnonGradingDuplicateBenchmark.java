@@ -0,0 +1,73 @@
+package ca.uwo.owl.quartz.benchmarks.anongrading;
+
+import ca.uwo.owl.quartz.jobs.anongrading.AnonGradingCSVFileStats;
+import ca.uwo.owl.quartz.jobs.anongrading.AnonGradingDuplicateIndex;
+import ca.uwo.owl.quartz.jobs.anongrading.AnonGradingDuplicateReport;
+import ca.uwo.owl.quartz.jobs.anongrading.AnonGradingRowStore;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Duplicate detection, as SyncAnonGradingIDs does it: index the parsed rows, stream any duplicates to the report (in a temporary folder) and keep the unique rows
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class AnonGradingDuplicateBenchmark extends AnonGradingFeedState
+{
+	private AnonGradingRowStore csvRows;
+	private File reportDir;
+	private List<AnonGradingCSVFileStats> fileStats;
+
+	@Setup(Level.Trial)
+	public void loadFeed() throws IOException
+	{
+		csvRows = AnonGradingFeedGenerator.toStore(generator().generateRows());
+		reportDir = Files.createTempDirectory("anon-grades-bench").toFile();
+		fileStats = Collections.singletonList(new AnonGradingCSVFileStats("anon-grades.csv", 0, csvRows.size(), csvRows.size(), 0, ""));
+	}
+
+	@TearDown(Level.Trial)
+	public void deleteReport() throws IOException
+	{
+		Files.deleteIfExists(new File(reportDir, AnonGradingDuplicateReport.REPORT_FILE_NAME).toPath());
+		Files.deleteIfExists(reportDir.toPath());
+	}
+
+	@Benchmark
+	public void detectDuplicates(Blackhole blackhole) throws IOException
+	{
+		AnonGradingDuplicateIndex duplicateIndex = new AnonGradingDuplicateIndex(csvRows);
+		if (duplicateIndex.getDuplicateCount() > 0)
+		{
+			try (AnonGradingDuplicateReport report = new AnonGradingDuplicateReport(reportDir, fileStats))
+			{
+				duplicateIndex.reportDuplicates(report);
+				blackhole.consume(report.summarize(20));
+			}
+		}
+		blackhole.consume(duplicateIndex.getUniqueRows());
+	}
+}
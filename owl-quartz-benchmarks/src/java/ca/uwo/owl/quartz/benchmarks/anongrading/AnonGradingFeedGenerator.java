@@ -0,0 +1,170 @@
+package ca.uwo.owl.quartz.benchmarks.anongrading;
+
+import ca.uwo.owl.quartz.jobs.anongrading.AnonGradingCSVRow;
+import ca.uwo.owl.quartz.jobs.anongrading.AnonGradingRowStore;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.sakaiproject.service.gradebook.shared.owl.anongrading.OwlAnonGradingID;
+
+/**
+ * Generates synthetic anonymous grading feeds that look like the registrar's: every student has one grading ID for the term,
+ * and appears in sectionFanOut sections of about SECTION_SIZE students each.
+ *
+ * The same seed always produces the same feed, so before and after measurements compare like with like.
+ */
+public class AnonGradingFeedGenerator
+{
+	//average number of students per section
+	public static final int SECTION_SIZE = 40;
+
+	private static final String HEADER = "SECTION_EID,USER_EID,ANON_GRADING_ID";
+
+	private final long seed;
+	private final int rowCount;
+	private final int sectionFanOut;
+	private final double duplicateRate;
+
+	/**
+	 * @param seed the random seed
+	 * @param rowCount the number of rows, not counting duplicates
+	 * @param sectionFanOut the number of sections each student appears in
+	 * @param duplicateRate the fraction of rows that appear a second time (with a different grading ID)
+	 */
+	public AnonGradingFeedGenerator(long seed, int rowCount, int sectionFanOut, double duplicateRate)
+	{
+		this.seed = seed;
+		this.rowCount = rowCount;
+		this.sectionFanOut = Math.max(1, sectionFanOut);
+		this.duplicateRate = duplicateRate;
+	}
+
+	/**
+	 * @return the feed's rows, in a shuffled order, duplicates included
+	 */
+	public List<AnonGradingCSVRow> generateRows()
+	{
+		Random random = new Random(seed);
+		int userCount = Math.max(1, (rowCount + sectionFanOut - 1) / sectionFanOut);
+		int sectionCount = Math.max(sectionFanOut, rowCount / SECTION_SIZE);
+
+		List<AnonGradingCSVRow> rows = new ArrayList<>(rowCount + (int) (rowCount * duplicateRate) + 1);
+		for (int user = 0; user < userCount; user++)
+		{
+			String userEid = String.format("u%07d", user);
+			int gradingID = gradingID(random);
+
+			//consecutive sections from a random start, so a student's sections are distinct
+			int firstSection = random.nextInt(sectionCount);
+			for (int i = 0; i < sectionFanOut && rows.size() < rowCount; i++)
+			{
+				rows.add(new AnonGradingCSVRow(sectionEid((firstSection + i) % sectionCount), userEid, gradingID));
+			}
+		}
+
+		int duplicateCount = (int) (rowCount * duplicateRate);
+		for (int i = 0; i < duplicateCount; i++)
+		{
+			AnonGradingCSVRow original = rows.get(random.nextInt(rowCount));
+			rows.add(new AnonGradingCSVRow(original.getSectionEid(), original.getUserEid(), gradingID(random)));
+		}
+
+		Collections.shuffle(rows, random);
+		return rows;
+	}
+
+	/**
+	 * Writes the rows as a CSV with a header line
+	 */
+	public static void writeCSV(List<AnonGradingCSVRow> rows, File csvFile) throws IOException
+	{
+		try (BufferedWriter writer = Files.newBufferedWriter(csvFile.toPath(), StandardCharsets.UTF_8))
+		{
+			writer.write(HEADER);
+			writer.newLine();
+			for (AnonGradingCSVRow row : rows)
+			{
+				writer.write(row.getSectionEid());
+				writer.write(',');
+				writer.write(row.getUserEid());
+				writer.write(',');
+				writer.write(Integer.toString(row.getGradingID()));
+				writer.newLine();
+			}
+		}
+	}
+
+	/**
+	 * Loads the rows into a row store, as the sync does after parsing
+	 */
+	public static AnonGradingRowStore toStore(List<AnonGradingCSVRow> rows)
+	{
+		AnonGradingRowStore store = new AnonGradingRowStore();
+		for (AnonGradingCSVRow row : rows)
+		{
+			store.add(row.getSectionEid(), row.getUserEid(), row.getGradingID());
+		}
+		return store;
+	}
+
+	/**
+	 * Generates the database rows the feed would be compared against. Of the CSV's rows, changeRate / 3 have a different grading ID in the database
+	 * and changeRate / 3 are missing from it; the database also has changeRate / 3 rows (relative to the CSV) that aren't in the CSV.
+	 * @param rows the CSV rows; (sectionEid, userEid) pairs should be unique
+	 */
+	public List<OwlAnonGradingID> generateDatabaseRows(List<AnonGradingCSVRow> rows, double changeRate)
+	{
+		Random random = new Random(seed + 1);
+		double third = changeRate / 3;
+		List<OwlAnonGradingID> dbRows = new ArrayList<>(rows.size());
+		for (AnonGradingCSVRow row : rows)
+		{
+			double roll = random.nextDouble();
+			if (roll < third)
+			{
+				//missing; will be inserted
+				continue;
+			}
+
+			int gradingID = roll < 2 * third ? gradingID(random) : row.getGradingID();
+			dbRows.add(databaseRow(row.getSectionEid(), row.getUserEid(), gradingID));
+		}
+
+		int extraCount = (int) (rows.size() * third);
+		for (int i = 0; i < extraCount; i++)
+		{
+			//a section from a previous term; will be deleted
+			dbRows.add(databaseRow("old-" + sectionEid(i / SECTION_SIZE), String.format("u%07d", i), gradingID(random)));
+		}
+
+		Collections.shuffle(dbRows, random);
+		return dbRows;
+	}
+
+	private static OwlAnonGradingID databaseRow(String sectionEid, String userEid, int gradingID)
+	{
+		OwlAnonGradingID dbRow = new OwlAnonGradingID();
+		dbRow.setSectionEid(sectionEid);
+		dbRow.setUserEid(userEid);
+		dbRow.setAnonGradingID(gradingID);
+		return dbRow;
+	}
+
+	private static String sectionEid(int section)
+	{
+		return String.format("2026F-%06d-001", section);
+	}
+
+	private static int gradingID(Random random)
+	{
+		return 1000 + random.nextInt(9000);
+	}
+}
@@ -0,0 +1,33 @@
+package ca.uwo.owl.quartz.benchmarks.anongrading;
+
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * The feed parameters shared by the anonymous grading benchmarks; override any of them on the command line, ie. -p rows=2000000
+ */
+@State(Scope.Benchmark)
+public abstract class AnonGradingFeedState
+{
+	@Param({"42"})
+	public long seed;
+
+	@Param({"100000", "1000000"})
+	public int rows;
+
+	@Param({"1", "4"})
+	public int sectionFanOut;
+
+	@Param({"0", "0.001"})
+	public double duplicateRate;
+
+	//fraction of rows that differ between the CSV and the database (split evenly between inserts, updates and deletes)
+	@Param({"0.01"})
+	public double changeRate;
+
+	protected AnonGradingFeedGenerator generator()
+	{
+		return new AnonGradingFeedGenerator(seed, rows, sectionFanOut, duplicateRate);
+	}
+}
@@ -0,0 +1,71 @@
+package ca.uwo.owl.quartz.benchmarks.anongrading;
+
+import ca.uwo.owl.quartz.jobs.anongrading.AnonGradingCSVParser;
+import ca.uwo.owl.quartz.jobs.anongrading.AnonGradingCSVRow;
+import ca.uwo.owl.quartz.jobs.anongrading.AnonGradingRowStore;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Parsing the CSV, as AnonGradingCSVHandler.getAnonGradingCSVRows does (straight into a row store), and into a list of rows,
+ * on one thread and split into ranges parsed on a fork-join pool (anongrading.parse.parallelism)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class AnonGradingParseBenchmark extends AnonGradingFeedState
+{
+	//threads the file is parsed with; files under 2 MB are always parsed on one thread
+	@Param({"1", "4"})
+	public int parallelism;
+
+	private File csvFile;
+
+	@Setup(Level.Trial)
+	public void writeFeed() throws IOException
+	{
+		csvFile = File.createTempFile("anon-grades-bench", ".csv");
+		AnonGradingFeedGenerator.writeCSV(generator().generateRows(), csvFile);
+	}
+
+	@TearDown(Level.Trial)
+	public void deleteFeed() throws IOException
+	{
+		Files.deleteIfExists(csvFile.toPath());
+	}
+
+	@Benchmark
+	public AnonGradingRowStore parseToStore()
+	{
+		AnonGradingRowStore store = new AnonGradingRowStore();
+		new AnonGradingCSVParser(1000, 9999, 1, parallelism).parse(csvFile, (sectionEid, userEid, gradingId, lineNumber) -> store.add(sectionEid, userEid, gradingId));
+		return store;
+	}
+
+	@Benchmark
+	public List<AnonGradingCSVRow> parseToList()
+	{
+		return new AnonGradingCSVParser(1000, 9999, 1, parallelism).parse(csvFile);
+	}
+}
@@ -0,0 +1,225 @@
+package ca.uwo.owl.quartz.jobs;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import lombok.extern.slf4j.Slf4j;
+
+import org.apache.commons.collections4.CollectionUtils;
+
+import org.sakaiproject.coursemanagement.api.AcademicSession;
+import org.sakaiproject.coursemanagement.api.CourseManagementService;
+import org.sakaiproject.coursemanagement.api.CourseOffering;
+import org.sakaiproject.coursemanagement.api.CourseSet;
+import org.sakaiproject.coursemanagement.api.Section;
+import org.sakaiproject.coursemanagement.api.exception.IdNotFoundException;
+
+/**
+ * Answers whether sections belong to a currently active academic session, for a single run of the RosterRoleEnforcer.
+ *
+ * The active sessions are fetched once, when the cache is created. Each section's course offering EID, and each offering's
+ * academic session EID, are fetched from course management the first time they are needed and remembered for the rest of the run
+ * (including sections and offerings that don't exist), so cross-listed sections and shared offerings are only looked up once.
+ * Not thread safe; create one per run.
+ */
+@Slf4j
+public class CurrentSectionCache
+{
+    private final CourseManagementService courseManagementService;
+
+    // EIDs of the 'active' academic sessions
+    private final Set<String> currentSessionEIDs = new HashSet<>();
+
+    // section EID -> course offering EID; null if the section doesn't exist
+    private final Map<String, String> sectionOfferings = new HashMap<>();
+
+    // course offering EID -> academic session EID; null if the offering doesn't exist or has no session
+    private final Map<String, String> offeringSessions = new HashMap<>();
+
+    private int sectionHits = 0;
+    private int sectionMisses = 0;
+    private int offeringHits = 0;
+    private int offeringMisses = 0;
+
+    public CurrentSectionCache( CourseManagementService courseManagementService )
+    {
+        this.courseManagementService = courseManagementService;
+
+        List<AcademicSession> currentSessions = courseManagementService.getCurrentAcademicSessions();
+        if( currentSessions != null )
+        {
+            for( AcademicSession session : currentSessions )
+            {
+                currentSessionEIDs.add( session.getEid() );
+            }
+        }
+    }
+
+    /**
+     * Finds every section of the currently active academic sessions: the course offerings of each session in every course set (child course sets included),
+     * then each offering's sections. The sections and offerings found are remembered as current, so later isCurrentSection calls for them are hits
+     *
+     * @return the EIDs of the sections in the currently active academic sessions
+     */
+    public Set<String> getCurrentSectionIDs()
+    {
+        Set<String> sectionIDs = new HashSet<>();
+        Set<String> courseOfferingIDs = new HashSet<>();
+        for( String courseSetID : getCourseSetIDs() )
+        {
+            for( String sessionID : currentSessionEIDs )
+            {
+                Set<CourseOffering> offerings;
+                try { offerings = courseManagementService.findCourseOfferings( courseSetID, sessionID ); }
+                catch( IdNotFoundException ex ) { log.error( "CourseSet or AcademicSession does not exist, IDs = <{}>, <{}>.", new Object[] {courseSetID, sessionID, ex} ); continue; }
+
+                for( CourseOffering offering : offerings )
+                {
+                    // Offerings can be in more than one course set
+                    String courseOfferingID = offering.getEid();
+                    if( !courseOfferingIDs.add( courseOfferingID ) )
+                    {
+                        continue;
+                    }
+                    offeringSessions.put( courseOfferingID, sessionID );
+
+                    Set<Section> sections;
+                    try { sections = courseManagementService.getSections( courseOfferingID ); }
+                    catch( IdNotFoundException ex ) { log.error( "CourseOffering does not exist, ID = <{}>.", courseOfferingID, ex ); continue; }
+
+                    for( Section section : sections )
+                    {
+                        sectionIDs.add( section.getEid() );
+                        sectionOfferings.put( section.getEid(), courseOfferingID );
+                    }
+                }
+            }
+        }
+
+        return sectionIDs;
+    }
+
+    /**
+     * Determines if any of the given section IDs are of a currently active term
+     *
+     * @param sectionIDs - the set of section IDs to check
+     * @return true if any of the given section IDs are of a currently active term; false otherwise
+     */
+    public boolean hasCurrentSection( Set<String> sectionIDs )
+    {
+        // If no section IDs are provided, or there are no 'active' academic sessions, return false
+        if( CollectionUtils.isEmpty( sectionIDs ) || currentSessionEIDs.isEmpty() )
+        {
+            return false;
+        }
+
+        for( String sectionID : sectionIDs )
+        {
+            if( isCurrentSection( sectionID ) )
+            {
+                return true;
+            }
+        }
+
+        // None of the sections are of any of the currently active sessions; return false
+        return false;
+    }
+
+    /**
+     * @param sectionID - the section ID to check
+     * @return true if the section's course offering belongs to a currently active academic session
+     */
+    public boolean isCurrentSection( String sectionID )
+    {
+        String courseOfferingID = getCourseOfferingID( sectionID );
+        if( courseOfferingID == null )
+        {
+            return false;
+        }
+
+        String sessionID = getAcademicSessionID( courseOfferingID );
+        return sessionID != null && currentSessionEIDs.contains( sessionID );
+    }
+
+    /**
+     * @return the cache's hit and miss counts (a miss is a course management call), ie. "sections: 1901 hits, 956 misses; course offerings: 2731 hits, 14 misses"
+     */
+    public String getStats()
+    {
+        return "sections: " + sectionHits + " hits, " + sectionMisses + " misses; course offerings: " + offeringHits + " hits, " + offeringMisses + " misses";
+    }
+
+    /**
+     * @return the EIDs of every course set, walking down from the top level course sets through their children
+     */
+    private Set<String> getCourseSetIDs()
+    {
+        Set<String> courseSetIDs = new HashSet<>();
+        Deque<CourseSet> pending = new ArrayDeque<>( courseManagementService.getCourseSets() );
+        while( !pending.isEmpty() )
+        {
+            CourseSet courseSet = pending.remove();
+            if( courseSetIDs.add( courseSet.getEid() ) )
+            {
+                try { pending.addAll( courseManagementService.getChildCourseSets( courseSet.getEid() ) ); }
+                catch( IdNotFoundException ex ) { log.error( "CourseSet does not exist, ID = <{}>.", courseSet.getEid(), ex ); }
+            }
+        }
+
+        return courseSetIDs;
+    }
+
+    private String getCourseOfferingID( String sectionID )
+    {
+        if( sectionOfferings.containsKey( sectionID ) )
+        {
+            sectionHits++;
+            return sectionOfferings.get( sectionID );
+        }
+
+        sectionMisses++;
+        String courseOfferingID = null;
+        try
+        {
+            Section section = courseManagementService.getSection( sectionID );
+            if( section != null )
+            {
+                courseOfferingID = section.getCourseOfferingEid();
+            }
+        }
+        catch( IdNotFoundException ex ) { log.error( "Section does not exist, ID = <{}>. ", sectionID, ex ); }
+
+        sectionOfferings.put( sectionID, courseOfferingID );
+        return courseOfferingID;
+    }
+
+    private String getAcademicSessionID( String courseOfferingID )
+    {
+        if( offeringSessions.containsKey( courseOfferingID ) )
+        {
+            offeringHits++;
+            return offeringSessions.get( courseOfferingID );
+        }
+
+        offeringMisses++;
+        String sessionID = null;
+        try
+        {
+            CourseOffering offering = courseManagementService.getCourseOffering( courseOfferingID );
+            AcademicSession session = offering == null ? null : offering.getAcademicSession();
+            if( session != null )
+            {
+                sessionID = session.getEid();
+            }
+        }
+        catch( IdNotFoundException ex ) { log.error( "CourseOffering does not exist, ID = <{}>.", courseOfferingID, ex ); }
+
+        offeringSessions.put( courseOfferingID, sessionID );
+        return sessionID;
+    }
+}
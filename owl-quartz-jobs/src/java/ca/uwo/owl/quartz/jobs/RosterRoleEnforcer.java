@@ -1,16 +1,18 @@
 package ca.uwo.owl.quartz.jobs;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
 
 import lombok.Getter;
 import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
 
-import org.apache.commons.collections4.CollectionUtils;
 import org.apache.commons.lang3.ArrayUtils;
 import org.apache.commons.lang3.StringUtils;
 
@@ -26,19 +28,16 @@ import org.sakaiproject.authz.api.Member;
 import org.sakaiproject.authz.api.SecurityAdvisor;
 import org.sakaiproject.authz.api.SecurityService;
 import org.sakaiproject.component.cover.ServerConfigurationService;
-import org.sakaiproject.coursemanagement.api.AcademicSession;
 import org.sakaiproject.coursemanagement.api.CourseManagementService;
-import org.sakaiproject.coursemanagement.api.CourseOffering;
 import org.sakaiproject.coursemanagement.api.Membership;
-import org.sakaiproject.coursemanagement.api.Section;
-import org.sakaiproject.coursemanagement.api.exception.IdNotFoundException;
+import org.sakaiproject.exception.IdUnusedException;
+import org.sakaiproject.javax.PagingPosition;
 import org.sakaiproject.site.api.Site;
 import org.sakaiproject.site.api.SiteService;
 import org.sakaiproject.site.api.SiteService.SelectionType;
 import org.sakaiproject.site.api.SiteService.SortType;
 import org.sakaiproject.tool.api.SessionManager;
 import org.sakaiproject.user.api.UserDirectoryService;
-import org.sakaiproject.user.api.UserNotDefinedException;
 
 /**
  * This Quartz job is responsible for scanning all existing course sites in Sakai,
@@ -72,6 +71,17 @@ public class RosterRoleEnforcer implements Job
     // Sakai.properties
     private static final String SAKAI_PROPS_SAKORA_ROLES    = "sitemanage.siteCreation.sakoraRoles";
     private static final String SAKAI_PROPS_SITE_ROLES      = "sitemanage.siteCreation.siteRoles";
+    private static final String SAKAI_PROPS_PAGE_SIZE       = "owlquartzjobs.rosterroleenforcer.pageSize";
+    private static final String SAKAI_PROPS_MODE            = "owlquartzjobs.rosterroleenforcer.mode";
+
+    // Course sites are walked, and their sections fetched, this many sites at a time
+    private static final int    PAGE_SIZE_DEFAULT           = 1000;
+
+    // Modes: walk every course site (default), or only the sites referencing a section of a current academic session
+    private static final String MODE_SITES                  = "sites";
+    private static final String MODE_SECTIONS               = "sections";
+
+    private static final String COURSE_SITE_TYPE            = "course";
 
     // API's
     @Getter @Setter private SiteService             siteService;
@@ -118,62 +128,209 @@ public class RosterRoleEnforcer implements Job
         // Short circuit if the map is not populated
         if( !SITE_TO_SAKORA_ROLE_MAP.isEmpty() )
         {
-            // Loop through a list of all course sites
-            List<Site> sites = siteService.getSites( SelectionType.ANY, "course", null, null, SortType.NONE, null );
-            for( Site site : sites )
+            CurrentSectionCache currentSections = new CurrentSectionCache( courseManagementService );
+            UserIDCache userIDs = new UserIDCache( userDirectoryService );
+            if( MODE_SECTIONS.equalsIgnoreCase( ServerConfigurationService.getString( SAKAI_PROPS_MODE, MODE_SITES ) ) )
+            {
+                enforceCurrentSectionSites( currentSections, userIDs );
+            }
+            else
+            {
+                enforceAllCourseSites( currentSections, userIDs );
+            }
+
+            log.info( "Course management lookups: {}", currentSections.getStats() );
+            log.info( "User directory lookups: {}", userIDs.getStats() );
+        }
+        else
+        {
+            log.warn( "Aborting without processing anything; roleMap is empty" );
+        }
+    }
+
+    /**
+     * Walks every course site a page of site IDs at a time, so only one page is ever held in memory; sites are loaded one by one, and only if they have a current section
+     * 
+     * @param currentSections the run's cache of which sections are current
+     * @param userIDs the run's cache of user IDs by EID
+     */
+    private void enforceAllCourseSites( CurrentSectionCache currentSections, UserIDCache userIDs )
+    {
+        int pageSize = getPageSize();
+        int siteCount = 0;
+        for( int first = 1; ; first += pageSize )
+        {
+            List<String> siteIDs = siteService.getSiteIds( SelectionType.ANY, COURSE_SITE_TYPE, null, null, SortType.ID_ASC, new PagingPosition( first, first + pageSize - 1 ) );
+            enforceSites( siteIDs, currentSections, userIDs );
+
+            siteCount += siteIDs.size();
+            if( siteIDs.size() < pageSize )
             {
-                // Get the realm ID of the site; get the sections for the site
-                String realmID = siteService.siteReference( site.getId() );
-                Set<String> sectionIDs = authzGroupService.getProviderIds( realmID );
+                break;
+            }
+        }
+
+        log.info( "Scanned {} course sites in pages of {}", siteCount, pageSize );
+    }
 
-                // OQJ-15 - continue with this site only if it has at least one 'active' section
-                if( !hasCurrentSection( sectionIDs ) )
+    /**
+     * Starts from the currently active academic sessions instead: builds the set of their section EIDs once, then enforces only the sites whose realms
+     * reference one of those sections. Sites from past terms are never looked at.
+     * 
+     * @param currentSections the run's cache of which sections are current
+     * @param userIDs the run's cache of user IDs by EID
+     */
+    private void enforceCurrentSectionSites( CurrentSectionCache currentSections, UserIDCache userIDs )
+    {
+        Set<String> currentSectionIDs = currentSections.getCurrentSectionIDs();
+
+        // Resolve the realms referencing each current section to their sites (section-based group realms belong to a site that is found through its own realm)
+        String siteReferencePrefix = siteService.siteReference( "" );
+        Set<String> siteIDs = new TreeSet<>();
+        for( String sectionID : currentSectionIDs )
+        {
+            for( String realmID : authzGroupService.getAuthzGroupIds( sectionID ) )
+            {
+                String siteID = StringUtils.removeStart( realmID, siteReferencePrefix );
+                if( realmID.startsWith( siteReferencePrefix ) && !siteID.contains( "/" ) )
                 {
-                    continue;
+                    siteIDs.add( siteID );
                 }
+            }
+        }
+
+        log.info( "Found {} sites referencing the {} sections of the current academic sessions", siteIDs.size(), currentSectionIDs.size() );
+        List<String> siteIDList = new ArrayList<>( siteIDs );
+        int pageSize = getPageSize();
+        for( int first = 0; first < siteIDList.size(); first += pageSize )
+        {
+            enforceSites( siteIDList.subList( first, Math.min( first + pageSize, siteIDList.size() ) ), currentSections, userIDs );
+        }
+    }
+
+    /**
+     * Enforces the roster roles in a page of sites. The sections of all of the page's realms are fetched in a single call
+     * 
+     * @param siteIDs the IDs of the sites in the page
+     * @param currentSections the run's cache of which sections are current
+     * @param userIDs the run's cache of user IDs by EID
+     */
+    private void enforceSites( List<String> siteIDs, CurrentSectionCache currentSections, UserIDCache userIDs )
+    {
+        if( siteIDs.isEmpty() )
+        {
+            return;
+        }
+
+        // Get the realm IDs of the sites; get the sections for all of the realms at once (realms without sections are left out of the result)
+        List<String> realmIDs = new ArrayList<>( siteIDs.size() );
+        for( String siteID : siteIDs )
+        {
+            realmIDs.add( siteService.siteReference( siteID ) );
+        }
+        Map<String, List<String>> realmSectionIDs = authzGroupService.getProviderIDsForRealms( realmIDs );
+
+        for( int i = 0; i < siteIDs.size(); i++ )
+        {
+            List<String> sectionIDs = realmSectionIDs.get( realmIDs.get( i ) );
+            if( sectionIDs != null )
+            {
+                enforceSite( siteIDs.get( i ), realmIDs.get( i ), new HashSet<>( sectionIDs ), currentSections, userIDs );
+            }
+        }
+    }
+
+    /**
+     * @return the number of sites to process per page (and per provider ID lookup)
+     */
+    private int getPageSize()
+    {
+        return Math.max( 1, ServerConfigurationService.getInt( SAKAI_PROPS_PAGE_SIZE, PAGE_SIZE_DEFAULT ) );
+    }
+
+    /**
+     * Enforces the roster roles in the given site, if it has at least one 'active' section
+     * 
+     * @param siteID the ID of the course site
+     * @param realmID the realm ID of the site
+     * @param sectionIDs the sections (provider IDs) of the site's realm
+     * @param currentSections the run's cache of which sections are current
+     * @param userIDs the run's cache of user IDs by EID
+     */
+    private void enforceSite( String siteID, String realmID, Set<String> sectionIDs, CurrentSectionCache currentSections, UserIDCache userIDs )
+    {
+        // OQJ-15 - continue with this site only if it has at least one 'active' section
+        if( !currentSections.hasCurrentSection( sectionIDs ) )
+        {
+            return;
+        }
 
-                // Determine the 'maintain' role for the site
-                String siteMaintainRole = site.getMaintainRole();
-                String sakoraMaintainRole = SITE_TO_SAKORA_ROLE_MAP.get( siteMaintainRole );
+        // Only now load the site; it may have been deleted since its ID was fetched
+        Site site;
+        try { site = siteService.getSite( siteID ); }
+        catch( IdUnusedException ex )
+        {
+            log.warn( "Site no longer exists, ID = <{}>.", siteID );
+            return;
+        }
+
+        // Sites found through their sections may not be course sites
+        if( !COURSE_SITE_TYPE.equals( site.getType() ) )
+        {
+            return;
+        }
 
-                // Determine if there are Sakora enrolments for an official maintainer (instructor in the Sakora data)
-                Map<String, Set<Membership>> sectionMembershipMap = new HashMap<>();
-                boolean rostersHaveInstructor = false;
-                for( String sectionID : sectionIDs )
+        // Determine the 'maintain' role for the site
+        String siteMaintainRole = site.getMaintainRole();
+        String sakoraMaintainRole = SITE_TO_SAKORA_ROLE_MAP.get( siteMaintainRole );
+
+        // Determine if there are Sakora enrolments for an official maintainer (instructor in the Sakora data)
+        Map<String, Set<Membership>> sectionMembershipMap = new HashMap<>();
+        boolean rostersHaveInstructor = false;
+        for( String sectionID : sectionIDs )
+        {
+            Set<Membership> memberships = courseManagementService.getSectionMemberships( sectionID );
+            if( !rostersHaveInstructor )
+            {
+                for( Membership membership : memberships )
                 {
-                    Set<Membership> memberships = courseManagementService.getSectionMemberships( sectionID );
-                    if( !rostersHaveInstructor )
+                    if( sakoraMaintainRole.equals( membership.getRole() ) )
                     {
-                        for( Membership membership : memberships )
-                        {
-                            if( sakoraMaintainRole.equals( membership.getRole() ) )
-                            {
-                                rostersHaveInstructor = true;
-                                break;
-                            }
-                        }
+                        rostersHaveInstructor = true;
+                        break;
                     }
-
-                    sectionMembershipMap.put( sectionID, memberships );
                 }
-
-                // Target instructors with differing sakora/site roles
-                findMembersToEnforce( sectionMembershipMap, sakoraMaintainRole, siteMaintainRole, realmID, true, rostersHaveInstructor, site );
-
-                // Target all other roles now that instructors have been processed
-                findMembersToEnforce( sectionMembershipMap, sakoraMaintainRole, siteMaintainRole, realmID, false, rostersHaveInstructor, site );
             }
+
+            sectionMembershipMap.put( sectionID, memberships );
         }
-        else
+
+        // Resolve the internal IDs of every member with a mapped Sakora role in one directory call (users already resolved this run aren't looked up again)
+        Set<String> userEIDs = new HashSet<>();
+        for( Set<Membership> memberships : sectionMembershipMap.values() )
         {
-            log.warn( "Aborting without processing anything; roleMap is empty" );
+            for( Membership membership : memberships )
+            {
+                if( SAKORA_TO_SITE_ROLE_MAP.containsKey( membership.getRole() ) )
+                {
+                    userEIDs.add( membership.getUserId() );
+                }
+            }
         }
+        userIDs.resolve( userEIDs );
+
+        // Target instructors with differing sakora/site roles
+        findMembersToEnforce( sectionMembershipMap, sakoraMaintainRole, siteMaintainRole, realmID, true, rostersHaveInstructor, site, userIDs );
+
+        // Target all other roles now that instructors have been processed
+        findMembersToEnforce( sectionMembershipMap, sakoraMaintainRole, siteMaintainRole, realmID, false, rostersHaveInstructor, site, userIDs );
     }
 
     /**
      * This algorithm determines if a user's Sakora role differs from their site role.
      * If so, it will make a call to 'remove' the user from the realm, in effect exposing
-     * their true Sakora role in the site.
+     * their true Sakora role in the site. User IDs are resolved with a cache of their own,
+     * for callers outside of a run.
      * 
      * @param sectionMembershipMap a map where the keys are section IDs belonging to the site, and the value is a Set of memberships for the section
      * @param sakoraMaintainRole the Sakora maintainer role for the site
@@ -185,6 +342,27 @@ public class RosterRoleEnforcer implements Job
      */
     public void findMembersToEnforce( Map<String, Set<Membership>> sectionMembershipMap, String sakoraMaintainRole, String siteMaintainRole, String realmID,
                                         boolean searchForMaintainers, boolean rostersHaveInstructor, Site site )
+    {
+        findMembersToEnforce( sectionMembershipMap, sakoraMaintainRole, siteMaintainRole, realmID, searchForMaintainers, rostersHaveInstructor, site,
+                              new UserIDCache( userDirectoryService ) );
+    }
+
+    /**
+     * This algorithm determines if a user's Sakora role differs from their site role.
+     * If so, it will make a call to 'remove' the user from the realm, in effect exposing
+     * their true Sakora role in the site.
+     * 
+     * @param sectionMembershipMap a map where the keys are section IDs belonging to the site, and the value is a Set of memberships for the section
+     * @param sakoraMaintainRole the Sakora maintainer role for the site
+     * @param siteMaintainRole the site maintainer role for this site
+     * @param realmID the realm ID of the site
+     * @param searchForMaintainers switch to determine if the algorithm is looking for maintainers, or all other roles
+     * @param rostersHaveInstructor true if any of the rosters in the site have an officially defined instructor in the Sakora enrollments
+     * @param site the site the sections and memberships belong to
+     * @param userIDs the run's cache of user IDs by EID
+     */
+    public void findMembersToEnforce( Map<String, Set<Membership>> sectionMembershipMap, String sakoraMaintainRole, String siteMaintainRole, String realmID,
+                                        boolean searchForMaintainers, boolean rostersHaveInstructor, Site site, UserIDCache userIDs )
     {
         // Loop through the sections in the section->membership map
         for( String sectionID : sectionMembershipMap.keySet() )
@@ -204,10 +382,8 @@ public class RosterRoleEnforcer implements Job
                 if( (!searchForMaintainers && !sakoraMaintainRole.equals( membersSakoraRole )) ||
                     (searchForMaintainers && sakoraMaintainRole.equals( membersSakoraRole )) )
                 {
-                    // Get the user's internal ID
-                    String userID = "";
-                    try { userID = userDirectoryService.getUserId( membership.getUserId() ); }
-                    catch( UserNotDefinedException ex ) { log.error( "Can't find user by ID: {}", membership.getUserId(), ex ); }
+                    // Get the user's internal ID (already resolved for the site)
+                    String userID = userIDs.getUserID( membership.getUserId() );
 
                     // If the user ID couldn't be found for whatever reason, continue to the next Membership in the list
                     if( StringUtils.isEmpty( userID ) )
@@ -275,58 +451,4 @@ public class RosterRoleEnforcer implements Job
         catch( AuthzPermissionException ex ) { log.error( "Insufficient privileges to remove user (user: {}, site: {}}", new Object[] {member.getUserId(), realmID}, ex ); }
         finally { securityService.popAdvisor( YES_MAN ); }
     }
-
-    /**
-     * Determines if any of the given section IDs are of a currently active term
-     * 
-     * @param sectionIDs - the set of section IDs to check
-     * @return true if any of the given section IDs are of a currently active term; false otherwise
-     */
-    private boolean hasCurrentSection( Set<String> sectionIDs )
-    {
-        // If no section IDs are provided, return false
-        if( CollectionUtils.isEmpty( sectionIDs ) )
-        {
-            return false;
-        }
-
-        // Get all the 'active' academic sessions; if there are none, return false
-        List<AcademicSession> currentSessions = courseManagementService.getCurrentAcademicSessions();
-        if( CollectionUtils.isEmpty( currentSessions ) )
-        {
-            return false;
-        }
-
-        // Loop through the section IDs provided
-        for( String sectionID : sectionIDs )
-        {
-            // Get the section
-            Section section = null;
-            try { section = courseManagementService.getSection( sectionID ); }
-            catch( IdNotFoundException ex ) { log.error( "Section does not exist, ID = <{}>. ", sectionID, ex ); }
-
-            // If the section is not null, get the course offering; otherwise skip to next iteration (section ID)
-            if( section != null )
-            {
-                CourseOffering offering = null;
-                String courseOfferingID = section.getCourseOfferingEid();
-                try { offering = courseManagementService.getCourseOffering( courseOfferingID ); }
-                catch( IdNotFoundException ex ) { log.error( "CourseOffering does not exist, ID = <{}>.", courseOfferingID, ex ); }
-
-                // If the course offering is not null, get the academic session; otherwise skip to next iteration (section ID)
-                if( offering != null )
-                {
-                    // If the academic session is not null, and if the EID of the session matches that of any of the 'active' sessions, return true
-                    AcademicSession session = offering.getAcademicSession();
-                    if( session != null && currentSessions.stream().anyMatch( as -> as.getEid().equals( session.getEid() ) ) )
-                    {
-                        return true;
-                    }
-                }
-            }
-        }
-
-        // None of the sections are of any of the currently active sessions; return false
-        return false;
-    }
 }
@@ -0,0 +1,145 @@
+package ca.uwo.owl.quartz.jobs;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import lombok.extern.slf4j.Slf4j;
+
+import org.apache.commons.lang3.StringUtils;
+
+import org.sakaiproject.user.api.User;
+import org.sakaiproject.user.api.UserDirectoryService;
+
+/**
+ * Resolves user EIDs to internal user IDs for a single run of the RosterRoleEnforcer.
+ *
+ * EIDs are resolved in batches with UserDirectoryService.getUsersByEids, and each result is remembered for the rest of the run,
+ * including EIDs that don't match a user, so each EID goes to the user directory (and its providers) at most once.
+ * Not thread safe; create one per run.
+ */
+@Slf4j
+public class UserIDCache
+{
+    // EIDs per getUsersByEids call
+    private static final int BATCH_SIZE = 1000;
+
+    private final UserDirectoryService userDirectoryService;
+
+    // user EID -> user ID; null if there is no such user
+    private final Map<String, String> userIDs = new HashMap<>();
+
+    // EIDs fetched by resolve that haven't been asked for yet; their miss was counted when they were fetched
+    private final Set<String> unread = new HashSet<>();
+
+    private int hits = 0;
+    private int misses = 0;
+    private int unknown = 0;
+    private int directoryCalls = 0;
+
+    public UserIDCache( UserDirectoryService userDirectoryService )
+    {
+        this.userDirectoryService = userDirectoryService;
+    }
+
+    /**
+     * Resolves every given EID that hasn't been resolved yet, in as few directory calls as possible
+     *
+     * @param userEIDs the EIDs to resolve
+     */
+    public void resolve( Collection<String> userEIDs )
+    {
+        Set<String> unresolved = new LinkedHashSet<>();
+        for( String userEID : userEIDs )
+        {
+            if( !userIDs.containsKey( userEID ) )
+            {
+                unresolved.add( userEID );
+            }
+        }
+
+        List<String> batch = new ArrayList<>( Math.min( unresolved.size(), BATCH_SIZE ) );
+        for( String userEID : unresolved )
+        {
+            batch.add( userEID );
+            if( batch.size() == BATCH_SIZE )
+            {
+                resolveBatch( batch );
+                batch.clear();
+            }
+        }
+        if( !batch.isEmpty() )
+        {
+            resolveBatch( batch );
+        }
+        unread.addAll( unresolved );
+    }
+
+    /**
+     * @param userEID the user's EID
+     * @return the user's internal ID, or null if no user has the EID
+     */
+    public String getUserID( String userEID )
+    {
+        // The first lookup of an EID fetched by resolve was already counted as a miss
+        if( !unread.remove( userEID ) )
+        {
+            if( userIDs.containsKey( userEID ) )
+            {
+                hits++;
+            }
+            else
+            {
+                resolveBatch( Collections.singletonList( userEID ) );
+            }
+        }
+
+        return userIDs.get( userEID );
+    }
+
+    /**
+     * @return the cache's hit and miss counts (a miss is an EID sent to the user directory), ie. "users: 41872 hits, 15220 misses (12 unknown) in 31 directory calls"
+     */
+    public String getStats()
+    {
+        return "users: " + hits + " hits, " + misses + " misses (" + unknown + " unknown) in " + directoryCalls + " directory calls";
+    }
+
+    private void resolveBatch( List<String> userEIDs )
+    {
+        directoryCalls++;
+        misses += userEIDs.size();
+
+        // The directory normalizes EIDs, so match what comes back both as is and trimmed and lower cased
+        Map<String, String> found = new HashMap<>();
+        for( User user : userDirectoryService.getUsersByEids( userEIDs ) )
+        {
+            found.put( user.getEid(), user.getId() );
+            found.put( normalize( user.getEid() ), user.getId() );
+        }
+
+        for( String userEID : userEIDs )
+        {
+            String userID = found.containsKey( userEID ) ? found.get( userEID ) : found.get( normalize( userEID ) );
+            if( StringUtils.isEmpty( userID ) )
+            {
+                userID = null;
+                unknown++;
+                log.warn( "Can't find user by EID: {}", userEID );
+            }
+
+            userIDs.put( userEID, userID );
+        }
+    }
+
+    private static String normalize( String userEID )
+    {
+        return StringUtils.lowerCase( StringUtils.trim( userEID ) );
+    }
+}
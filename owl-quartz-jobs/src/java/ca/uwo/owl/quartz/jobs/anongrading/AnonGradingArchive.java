@@ -0,0 +1,414 @@
+package ca.uwo.owl.quartz.jobs.anongrading;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import lombok.extern.slf4j.Slf4j;
+
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * The archive location of processed batches.
+ *
+ * Each batch folder is streamed into a single zip file (anon-grades-batch-TIME-finished.zip / -failed.zip), or moved as is when compression is off.
+ * An index file lists the archived batches, oldest first, with the fingerprint of each batch's CSV, so the latest finished batch can be found
+ * (and old batches pruned) without listing the archive location. The index is built once from a listing when it doesn't exist yet,
+ * which also picks up the uncompressed batch folders archived before compression was introduced.
+ */
+@Slf4j
+public class AnonGradingArchive
+{
+	public static final String INDEX_FILE_NAME = "anon-grades-archive.index";
+
+	//suffixes for the archived batches
+	private static final String FINISHED_SUFFIX = "-finished";
+	private static final String FAILED_SUFFIX = "-failed";
+	private static final String ZIP_EXTENSION = ".zip";
+
+	private final File archiveDir;
+	private final String batchPrefix;
+	private final String fingerprintFileName;
+
+	//the index, oldest first; loaded on first use
+	private List<Entry> entries = null;
+
+	/**
+	 * @param batchPrefix the prefix of the batch folder names
+	 * @param fingerprintFileName the file in each batch folder holding the fingerprint of its CSV
+	 */
+	public AnonGradingArchive(File archiveDir, String batchPrefix, String fingerprintFileName)
+	{
+		this.archiveDir = archiveDir;
+		this.batchPrefix = batchPrefix;
+		this.fingerprintFileName = fingerprintFileName;
+	}
+
+	/**
+	 * Archives a batch folder and adds it to the index
+	 * @param success the archive's name will include the word 'finished' if true; 'failed' if false
+	 * @param compress stream the batch into a zip file rather than moving the folder
+	 * @param beforeClose called with the batch folder once its files have been archived; anything it writes into the folder is archived too
+	 * @return the archived batch (zip file or folder)
+	 * @throws java.io.IOException
+	 */
+	public File archive(File batchDir, boolean success, boolean compress, Consumer<File> beforeClose) throws IOException
+	{
+		archiveDir.mkdirs();
+		loadIndex();
+
+		String name = batchPrefix + System.currentTimeMillis() + (success ? FINISHED_SUFFIX : FAILED_SUFFIX);
+		File archived;
+		if (compress)
+		{
+			archived = new File(archiveDir, name + ZIP_EXTENSION);
+			compress(batchDir, archived, beforeClose);
+			deleteRecursively(batchDir.toPath());
+		}
+		else
+		{
+			beforeClose.accept(batchDir);
+			archived = new File(archiveDir, name);
+			//Move the processing directory itself to the archive
+			batchDir.renameTo(archived);
+		}
+
+		Entry entry = new Entry(archived.getName(), readFingerprint(archived));
+		entries.add(entry);
+		Files.write(getIndexFile().toPath(), (entry.toLine() + "\n").getBytes(StandardCharsets.UTF_8),
+					StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+		return archived;
+	}
+
+	/**
+	 * @return the most recent batch that was archived as finished, or null if there isn't one
+	 * @throws java.io.IOException
+	 */
+	public Entry getLatestFinished() throws IOException
+	{
+		loadIndex();
+		for (int i = entries.size() - 1; i >= 0; i--)
+		{
+			if (entries.get(i).isFinished())
+			{
+				return entries.get(i);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Gets at the CSV files of an archived batch
+	 * @param workDir where a zipped batch's CSV files are extracted to
+	 * @return the folder holding the batch's CSV files: the batch folder itself if it isn't compressed, otherwise workDir
+	 * @throws java.io.IOException
+	 */
+	public File unpackCSVFiles(Entry entry, Predicate<String> isCSVFileName, File workDir) throws IOException
+	{
+		File file = entry.getFile();
+		if (file.isDirectory())
+		{
+			return file;
+		}
+
+		workDir.mkdirs();
+		try (ZipFile zip = new ZipFile(file))
+		{
+			Enumeration<? extends ZipEntry> zipEntries = zip.entries();
+			while (zipEntries.hasMoreElements())
+			{
+				ZipEntry zipEntry = zipEntries.nextElement();
+				if (!zipEntry.isDirectory() && zipEntry.getName().indexOf('/') < 0 && isCSVFileName.test(zipEntry.getName()))
+				{
+					try (InputStream in = zip.getInputStream(zipEntry))
+					{
+						Files.copy(in, new File(workDir, zipEntry.getName()).toPath(), StandardCopyOption.REPLACE_EXISTING);
+					}
+				}
+			}
+		}
+		return workDir;
+	}
+
+	/**
+	 * Deletes archived batches beyond the newest maxBatches, and those older than maxAgeDays. The latest finished batch is always kept,
+	 * as the next run compares against it. A limit of 0 or less doesn't apply.
+	 * @return the number of batches deleted
+	 * @throws java.io.IOException
+	 */
+	public int prune(int maxBatches, int maxAgeDays) throws IOException
+	{
+		if (maxBatches <= 0 && maxAgeDays <= 0)
+		{
+			return 0;
+		}
+
+		loadIndex();
+		Entry latestFinished = getLatestFinished();
+		long cutoff = maxAgeDays > 0 ? System.currentTimeMillis() - TimeUnit.DAYS.toMillis(maxAgeDays) : Long.MIN_VALUE;
+		int excess = maxBatches > 0 ? entries.size() - maxBatches : 0;
+		int deleted = 0;
+		for (Iterator<Entry> i = entries.iterator(); i.hasNext();)
+		{
+			Entry entry = i.next();
+			//entries are oldest first, so the excess ones come first
+			boolean expired = excess-- > 0 || entry.getTime() < cutoff;
+			if (expired && entry != latestFinished)
+			{
+				deleteRecursively(entry.getFile().toPath());
+				i.remove();
+				deleted++;
+			}
+		}
+
+		if (deleted > 0)
+		{
+			writeIndex();
+			log.info("Pruned {} archived batches from {}; {} remain", new Object[] {deleted, archiveDir, entries.size()});
+		}
+		return deleted;
+	}
+
+	/**
+	 * Streams every file in the batch folder into a zip file. The zip is written under a temporary name and moved into place,
+	 * so a half written archive is never indexed
+	 */
+	private void compress(File batchDir, File zipFile, Consumer<File> beforeClose) throws IOException
+	{
+		Path tmp = zipFile.toPath().resolveSibling(zipFile.getName() + ".tmp");
+		List<String> archived = new ArrayList<>();
+		try (ZipOutputStream out = new ZipOutputStream(Files.newOutputStream(tmp)))
+		{
+			addFiles(batchDir, out, archived);
+			beforeClose.accept(batchDir);
+			addFiles(batchDir, out, archived);
+		}
+		catch (IOException | RuntimeException e)
+		{
+			Files.deleteIfExists(tmp);
+			throw e;
+		}
+		Files.move(tmp, zipFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Adds the files in the batch folder that aren't in the zip yet, in name order; sub folders are skipped
+	 */
+	private void addFiles(File batchDir, ZipOutputStream out, List<String> archived) throws IOException
+	{
+		List<Path> files = new ArrayList<>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(batchDir.toPath()))
+		{
+			for (Path file : stream)
+			{
+				if (Files.isRegularFile(file) && !archived.contains(file.getFileName().toString()))
+				{
+					files.add(file);
+				}
+			}
+		}
+		files.sort(Comparator.comparing(Path::toString));
+
+		for (Path file : files)
+		{
+			String name = file.getFileName().toString();
+			ZipEntry zipEntry = new ZipEntry(name);
+			zipEntry.setTime(Files.getLastModifiedTime(file).toMillis());
+			out.putNextEntry(zipEntry);
+			Files.copy(file, out);
+			out.closeEntry();
+			archived.add(name);
+		}
+	}
+
+	/**
+	 * @return the fingerprint stored in an archived batch, or an empty string if it has none
+	 */
+	private String readFingerprint(File archived) throws IOException
+	{
+		if (archived.isDirectory())
+		{
+			File fingerprintFile = new File(archived, fingerprintFileName);
+			return fingerprintFile.exists() ? new String(Files.readAllBytes(fingerprintFile.toPath()), StandardCharsets.UTF_8).trim() : "";
+		}
+
+		try (ZipFile zip = new ZipFile(archived))
+		{
+			ZipEntry zipEntry = zip.getEntry(fingerprintFileName);
+			if (zipEntry == null)
+			{
+				return "";
+			}
+			try (InputStream in = zip.getInputStream(zipEntry))
+			{
+				return new String(in.readAllBytes(), StandardCharsets.UTF_8).trim();
+			}
+		}
+	}
+
+	private File getIndexFile()
+	{
+		return new File(archiveDir, INDEX_FILE_NAME);
+	}
+
+	/**
+	 * Reads the index, building it from a listing of the archive location if it doesn't exist
+	 */
+	private void loadIndex() throws IOException
+	{
+		if (entries != null)
+		{
+			return;
+		}
+
+		File indexFile = getIndexFile();
+		if (indexFile.exists())
+		{
+			List<Entry> loaded = new ArrayList<>();
+			for (String line : Files.readAllLines(indexFile.toPath(), StandardCharsets.UTF_8))
+			{
+				//each line is the batch's file name and its fingerprint, tab separated
+				String[] fields = line.split("\t", 2);
+				if (!fields[0].isEmpty())
+				{
+					loaded.add(new Entry(fields[0], fields.length > 1 ? fields[1] : ""));
+				}
+			}
+			entries = loaded;
+			return;
+		}
+
+		List<Entry> listed = new ArrayList<>();
+		File[] batches = archiveDir.listFiles((dir, name) -> name.startsWith(batchPrefix));
+		if (batches != null)
+		{
+			for (File batch : batches)
+			{
+				Entry entry = new Entry(batch.getName(), "");
+				if (entry.getTime() >= 0)
+				{
+					listed.add(entry);
+				}
+			}
+		}
+		listed.sort(Comparator.comparingLong(Entry::getTime));
+
+		//only the latest finished batch's fingerprint is ever compared against
+		for (int i = listed.size() - 1; i >= 0; i--)
+		{
+			if (listed.get(i).isFinished())
+			{
+				listed.set(i, new Entry(listed.get(i).name, readFingerprint(listed.get(i).getFile())));
+				break;
+			}
+		}
+		entries = listed;
+		if (!entries.isEmpty())
+		{
+			writeIndex();
+			log.info("Indexed {} archived batches in {}", entries.size(), archiveDir);
+		}
+	}
+
+	/**
+	 * Rewrites the index atomically
+	 */
+	private void writeIndex() throws IOException
+	{
+		Path index = getIndexFile().toPath();
+		Path tmp = index.resolveSibling(index.getFileName() + ".tmp");
+		try (OutputStream out = Files.newOutputStream(tmp))
+		{
+			for (Entry entry : entries)
+			{
+				out.write((entry.toLine() + "\n").getBytes(StandardCharsets.UTF_8));
+			}
+		}
+		Files.move(tmp, index, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Deletes a file, or a folder and everything in it; does nothing if it doesn't exist
+	 */
+	static void deleteRecursively(Path path) throws IOException
+	{
+		if (Files.isDirectory(path))
+		{
+			try (DirectoryStream<Path> stream = Files.newDirectoryStream(path))
+			{
+				for (Path child : stream)
+				{
+					deleteRecursively(child);
+				}
+			}
+		}
+		Files.deleteIfExists(path);
+	}
+
+	/**
+	 * An archived batch: its file name and the fingerprint of its CSV
+	 */
+	public final class Entry
+	{
+		private final String name;
+		private final String fingerprint;
+
+		private Entry(String name, String fingerprint)
+		{
+			this.name = name;
+			this.fingerprint = fingerprint;
+		}
+
+		public File getFile()
+		{
+			return new File(archiveDir, name);
+		}
+
+		/**
+		 * @return the fingerprint of the batch's CSV, or null if it has none
+		 */
+		public String getFingerprint()
+		{
+			return StringUtils.trimToNull(fingerprint);
+		}
+
+		public boolean isFinished()
+		{
+			return StringUtils.removeEnd(name, ZIP_EXTENSION).endsWith(FINISHED_SUFFIX);
+		}
+
+		/**
+		 * @return the time the batch was archived, from its name; or -1 if the name isn't a batch name
+		 */
+		public long getTime()
+		{
+			String timestamp = StringUtils.removeEnd(name, ZIP_EXTENSION);
+			timestamp = StringUtils.removeEnd(StringUtils.removeEnd(timestamp, FINISHED_SUFFIX), FAILED_SUFFIX);
+			timestamp = StringUtils.removeStart(timestamp, batchPrefix);
+			return StringUtils.isNumeric(timestamp) ? Long.parseLong(timestamp) : -1;
+		}
+
+		private String toLine()
+		{
+			return name + "\t" + fingerprint;
+		}
+	}
+}
@@ -0,0 +1,250 @@
+package ca.uwo.owl.quartz.jobs.anongrading;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import lombok.extern.slf4j.Slf4j;
+
+import org.sakaiproject.service.gradebook.shared.GradebookService;
+import org.sakaiproject.service.gradebook.shared.owl.anongrading.OwlAnonGradingID;
+
+/**
+ * Applies changes to the OWL_ANON_GRADING_ID table in chunks of a configurable size.
+ *
+ * Each chunk is a separate gradebook service call (and therefore a separate, short transaction). After each chunk commits,
+ * it is recorded in the batch's AnonGradingCheckpoint and its latency is logged.
+ *
+ * With a parallelism above 1, each operation's rows are partitioned by sectionEid (a section's rows always land in the same partition, and partitions are balanced by row count)
+ * and the partitions are written concurrently, each one chunk at a time. Rows in different sections never share a key, so partitions can't conflict.
+ * Every partition runs to completion or failure; if any fail, an AnonGradingWriteException listing each failed partition is thrown once they have all finished.
+ * Operations are still applied one after the other, so all deletions complete before any update, and all updates before any insert.
+ */
+@Slf4j
+public class AnonGradingBatchWriter implements AnonGradingChangeWriter
+{
+	private final GradebookService gradebookService;
+	private final AnonGradingCheckpoint checkpoint;
+
+	//rows per gradebook service call; anything less than 1 writes each operation (or each partition) in a single call
+	private final int batchSize;
+
+	//the number of partitions written concurrently; 1 writes everything on the calling thread
+	private final int parallelism;
+
+	//rows written per operation across every call to apply
+	private final Map<AnonGradingOperation, Integer> totals = new EnumMap<>(AnonGradingOperation.class);
+
+	public AnonGradingBatchWriter(GradebookService gradebookService, AnonGradingCheckpoint checkpoint, int batchSize, int parallelism)
+	{
+		this.gradebookService = gradebookService;
+		this.checkpoint = checkpoint;
+		this.batchSize = batchSize;
+		this.parallelism = Math.max(1, parallelism);
+	}
+
+	/**
+	 * Applies the operation to all the given rows, one chunk at a time (per partition, when writing in parallel)
+	 * @return the number of rows the gradebook service reported as written
+	 * @throws IOException if the checkpoint can't be saved
+	 * throws AnonGradingWriteException if any partition of a parallel write fails
+	 */
+	@Override
+	public int apply(AnonGradingOperation operation, Collection<OwlAnonGradingID> rows) throws IOException
+	{
+		if (rows.isEmpty())
+		{
+			return 0;
+		}
+
+		int written = parallelism > 1 ? applyPartitioned(operation, rows) : applyChunks(operation, rows, "", new AtomicInteger());
+		totals.merge(operation, written, Integer::sum);
+		return written;
+	}
+
+	/**
+	 * @return the number of rows written for the operation across every call to apply
+	 */
+	@Override
+	public int getTotal(AnonGradingOperation operation)
+	{
+		return totals.getOrDefault(operation, 0);
+	}
+
+	/**
+	 * Writes the rows one chunk at a time on the calling thread
+	 * @param label identifies the partition in the log
+	 * @param committed incremented as each chunk commits, so a failed partition can report how far it got
+	 */
+	private int applyChunks(AnonGradingOperation operation, Collection<OwlAnonGradingID> rows, String label, AtomicInteger committed) throws IOException
+	{
+		int chunkSize = batchSize > 0 ? batchSize : rows.size();
+		int chunkCount = (rows.size() + chunkSize - 1) / chunkSize;
+		log.info("{}{}: {} rows in {} chunks", new Object[] {operation, label, rows.size(), chunkCount});
+
+		int written = 0;
+		int chunkNumber = 0;
+		Iterator<OwlAnonGradingID> itRows = rows.iterator();
+		while (itRows.hasNext())
+		{
+			Set<OwlAnonGradingID> chunk = new HashSet<>();
+			while (itRows.hasNext() && chunk.size() < chunkSize)
+			{
+				chunk.add(itRows.next());
+			}
+
+			long start = System.currentTimeMillis();
+			int count = write(operation, chunk);
+			long elapsed = System.currentTimeMillis() - start;
+
+			checkpoint.recordChunk(operation, count);
+			written += count;
+			committed.addAndGet(count);
+			log.info("{}{} chunk {}/{}: {} rows in {} ms", new Object[] {operation, label, ++chunkNumber, chunkCount, count, elapsed});
+		}
+
+		return written;
+	}
+
+	/**
+	 * Writes the partitions concurrently, waiting for all of them before reporting any failures
+	 */
+	private int applyPartitioned(AnonGradingOperation operation, Collection<OwlAnonGradingID> rows)
+	{
+		List<Partition> partitions = partitionBySection(rows);
+		log.info("{}: {} rows in {} partitions by section", new Object[] {operation, rows.size(), partitions.size()});
+
+		AtomicInteger threadNumber = new AtomicInteger();
+		ExecutorService executor = Executors.newFixedThreadPool(partitions.size(), r -> new Thread(r, "anon-grading-writer-" + threadNumber.incrementAndGet()));
+		List<Future<Integer>> results = new ArrayList<>(partitions.size());
+		try
+		{
+			for (Partition partition : partitions)
+			{
+				results.add(executor.submit(() -> applyChunks(operation, partition.rows, " " + partition, partition.committed)));
+			}
+
+			int written = 0;
+			List<Throwable> failures = new ArrayList<>();
+			StringBuilder message = new StringBuilder();
+			for (int i = 0; i < partitions.size(); i++)
+			{
+				Partition partition = partitions.get(i);
+				try
+				{
+					written += results.get(i).get();
+				}
+				catch (ExecutionException e)
+				{
+					Throwable cause = e.getCause();
+					log.error("{} {} failed after committing {} rows: {}", new Object[] {operation, partition, partition.committed.get(), cause.getMessage()});
+					failures.add(cause);
+					message.append('\n').append(partition).append(" (").append(partition.rows.size()).append(" rows in ").append(partition.sectionCount).append(" sections; ")
+							.append(partition.committed.get()).append(" committed): ").append(cause.getMessage());
+				}
+				catch (InterruptedException e)
+				{
+					Thread.currentThread().interrupt();
+					throw new AnonGradingWriteException(operation + " was interrupted", Collections.singletonList(e));
+				}
+			}
+
+			if (!failures.isEmpty())
+			{
+				throw new AnonGradingWriteException(operation + " failed in " + failures.size() + " of " + partitions.size() + " partitions:" + message, failures);
+			}
+			return written;
+		}
+		finally
+		{
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Groups the rows by sectionEid and deals the sections out, largest first, to whichever partition has the fewest rows so far
+	 */
+	private List<Partition> partitionBySection(Collection<OwlAnonGradingID> rows)
+	{
+		Map<String, List<OwlAnonGradingID>> rowsBySection = new HashMap<>();
+		for (OwlAnonGradingID row : rows)
+		{
+			rowsBySection.computeIfAbsent(row.getSectionEid(), k -> new ArrayList<>()).add(row);
+		}
+
+		List<List<OwlAnonGradingID>> sections = new ArrayList<>(rowsBySection.values());
+		sections.sort(Comparator.comparingInt((List<OwlAnonGradingID> section) -> section.size()).reversed());
+
+		int partitionCount = Math.min(parallelism, sections.size());
+		PriorityQueue<Partition> smallest = new PriorityQueue<>(partitionCount, Comparator.comparingInt((Partition partition) -> partition.rows.size()));
+		List<Partition> partitions = new ArrayList<>(partitionCount);
+		for (int i = 0; i < partitionCount; i++)
+		{
+			Partition partition = new Partition(i + 1, partitionCount);
+			partitions.add(partition);
+			smallest.add(partition);
+		}
+		for (List<OwlAnonGradingID> section : sections)
+		{
+			Partition partition = smallest.poll();
+			partition.rows.addAll(section);
+			partition.sectionCount++;
+			smallest.add(partition);
+		}
+		return partitions;
+	}
+
+	private int write(AnonGradingOperation operation, Set<OwlAnonGradingID> chunk)
+	{
+		switch (operation)
+		{
+			case DELETE:
+				return gradebookService.deleteAnonGradingIds(chunk);
+			case UPDATE:
+				return gradebookService.updateAnonGradingIds(chunk);
+			case INSERT:
+				return gradebookService.createAnonGradingIds(chunk);
+			default:
+				throw new IllegalArgumentException("Unknown operation: " + operation);
+		}
+	}
+
+	/**
+	 * The rows of one or more whole sections, written on one thread
+	 */
+	private static final class Partition
+	{
+		private final int number;
+		private final int partitionCount;
+		private final List<OwlAnonGradingID> rows = new ArrayList<>();
+		private int sectionCount = 0;
+		private final AtomicInteger committed = new AtomicInteger();
+
+		private Partition(int number, int partitionCount)
+		{
+			this.number = number;
+			this.partitionCount = partitionCount;
+		}
+
+		@Override
+		public String toString()
+		{
+			return "partition " + number + "/" + partitionCount;
+		}
+	}
+}
@@ -0,0 +1,79 @@
+package ca.uwo.owl.quartz.jobs.anongrading;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * The difference between the previously synced CSV and the current one.
+ *
+ * Each current row is looked up once in the previous CSV's AnonGradingRowStore by (sectionEid, userEid), marking the previous row it matches.
+ * Rows only in the current CSV were added, unmarked previous rows were removed, and rows in both with a different grading ID were changed.
+ * The sections touched by any of these are the only ones whose database rows can be out of date.
+ */
+@Slf4j
+public class AnonGradingCSVDelta
+{
+	@Getter private int addedCount = 0;
+	@Getter private int changedCount = 0;
+	@Getter private int removedCount = 0;
+
+	//sectionEids with at least one added, changed or removed row
+	@Getter private final Set<String> touchedSectionEids = new HashSet<>();
+
+	private AnonGradingCSVDelta()
+	{
+	}
+
+	/**
+	 * Computes the delta between two CSVs
+	 * @param previousRows the rows of the last successfully synced CSV; (sectionEid, userEid) pairs must be unique
+	 * @param currentRows the rows of the current CSV; (sectionEid, userEid) pairs must be unique
+	 */
+	public static AnonGradingCSVDelta compute(AnonGradingRowStore previousRows, AnonGradingRowStore currentRows)
+	{
+		AnonGradingCSVDelta delta = new AnonGradingCSVDelta();
+		boolean[] matched = new boolean[previousRows.size()];
+		for (int c = 0; c < currentRows.size(); c++)
+		{
+			String sectionEid = currentRows.getSectionEid(c);
+			int p = previousRows.indexOf(sectionEid, currentRows.getUserEid(c));
+			if (p < 0)
+			{
+				delta.addedCount++;
+				delta.touchedSectionEids.add(sectionEid);
+			}
+			else
+			{
+				matched[p] = true;
+				if (previousRows.getGradingID(p) != currentRows.getGradingID(c))
+				{
+					delta.changedCount++;
+					delta.touchedSectionEids.add(sectionEid);
+				}
+			}
+		}
+
+		for (int p = 0; p < matched.length; p++)
+		{
+			if (!matched[p])
+			{
+				delta.removedCount++;
+				delta.touchedSectionEids.add(previousRows.getSectionEid(p));
+			}
+		}
+
+		log.info("CSV delta: {} added, {} changed, {} removed across {} sections", new Object[] {delta.addedCount, delta.changedCount, delta.removedCount, delta.touchedSectionEids.size()});
+		return delta;
+	}
+
+	/**
+	 * @return true if the two CSVs have the same content
+	 */
+	public boolean isEmpty()
+	{
+		return touchedSectionEids.isEmpty();
+	}
+}
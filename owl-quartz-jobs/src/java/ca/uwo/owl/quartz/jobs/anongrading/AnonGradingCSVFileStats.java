@@ -0,0 +1,34 @@
+package ca.uwo.owl.quartz.jobs.anongrading;
+
+import lombok.Getter;
+
+/**
+ * What parsing one CSV file of a batch produced, and how long it took
+ */
+@Getter
+public class AnonGradingCSVFileStats
+{
+	private final String fileName;
+	private final long bytes;
+	private final int rows;
+	//including the header, as counted against the minimum row threshold
+	private final int lines;
+	private final long millis;
+	private final String fingerprint;
+
+	public AnonGradingCSVFileStats(String fileName, long bytes, int rows, int lines, long millis, String fingerprint)
+	{
+		this.fileName = fileName;
+		this.bytes = bytes;
+		this.rows = rows;
+		this.lines = lines;
+		this.millis = millis;
+		this.fingerprint = fingerprint;
+	}
+
+	@Override
+	public String toString()
+	{
+		return fileName + ": " + rows + " rows (" + bytes + " bytes) in " + millis + " ms";
+	}
+}
@@ -1,13 +1,40 @@
 package ca.uwo.owl.quartz.jobs.anongrading;
 
-import au.com.bytecode.opencsv.CSVReader;
-
-import java.io.BufferedReader;
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.File;
-import java.io.FileReader;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
 import lombok.extern.slf4j.Slf4j;
 
@@ -32,10 +59,20 @@ public class AnonGradingCSVHandler
 	private static final String PROP_CSV_LOCATION = "anongrading.csv.location";	
 	//sakai property specifying the file name (excluding the path) of the csv file
 	private static final String PROP_CSV_FILENAME = "anongrading.csv.filename";
+	//sakai property specifying a glob (ie. anon-grades-*.csv) matching every csv file of a batch; the files are parsed concurrently and merged into one feed.
+	//If unset, only anongrading.csv.filename is read
+	private static final String PROP_CSV_FILENAME_PATTERN = "anongrading.csv.filenamePattern";
+	//sakai property naming a file whose arrival in the pickup location marks the CSV as complete (ie. anon-grades.csv.done); it is moved into the batch along with the CSV
+	private static final String PROP_WATCH_MARKER_FILE = "owlquartzjobs.anongrading.sync.watch.markerFile";
 	//sakai property specifying the directory to move the csv into before processing
 	private static final String PROP_PROCESSING_LOCATION = "anongrading.processing.location";
 	//sakai property specifying the directory to archive the csv after processing
 	private static final String PROP_ARCHIVE_LOCATION = "anongrading.archive.location";
+	//sakai property specifying whether each batch is archived as a single zip file (true) or as a folder (false)
+	private static final String PROP_ARCHIVE_COMPRESS = "anongrading.archive.compress";
+	//sakai properties specifying how many archived batches to keep, and for how many days; 0 keeps them all. The latest finished batch is always kept
+	private static final String PROP_ARCHIVE_MAX_BATCHES = "anongrading.archive.retention.maxBatches";
+	private static final String PROP_ARCHIVE_MAX_AGE_DAYS = "anongrading.archive.retention.maxAgeDays";
 	//sakai property specifying the minimum grading ID (job will bail if a grading ID falls below the minimum)
 	private static final String PROP_MIN_GRADING_ID = "anongrading.minimum.gradingId";
 	private static final int MIN_GRADING_ID_DEFAULT = 1000;
@@ -45,6 +82,9 @@ public class AnonGradingCSVHandler
 	// sakai property specifiy the minimum number of rows that must appear in the file for this job to process it
 	private static final String PROP_MIN_ROW_COUNT = "anongrading.minimum.rowCount";
 	private static final int MIN_ROW_COUNT_DEFAULT = 10;
+	//sakai property specifying the number of threads the csv is parsed with; 0 uses one per available processor
+	private static final String PROP_PARSE_PARALLELISM = "anongrading.parse.parallelism";
+	private static final int PARSE_PARALLELISM_DEFAULT = 1;
 
 	//the default csv location relative to the sakai home path
 	private static final String DEFAULT_CSV_LOCATION = "anon-grades";
@@ -53,13 +93,52 @@ public class AnonGradingCSVHandler
 
 	//prefix for the batch folders
 	private static final String BATCH_PREFIX = "anon-grades-batch-";
-	//suffixes for the batch folders
-	private static final String FINISHED_SUFFIX = "-finished";
-	private static final String FAILED_SUFFIX = "-failed";
+	//prefix for the folders of plan (dry) runs, which are left in the processing location (and pruned with the archive's retention settings)
+	private static final String PLAN_PREFIX = "anon-grades-plan-";
+
+	//folder in the batch folder that the previous batch's CSV is extracted into, when it was archived compressed
+	private static final String PREVIOUS_CSV_DIRNAME = "previous";
+
+	//file in each batch folder holding the fingerprint of the CSV's parsed content
+	private static final String FINGERPRINT_FILENAME = "anon-grades.sha256";
+
+	//file in the processing location holding state that spans batches, and its keys. It sits next to the lock and resume marker rather than in the archive location,
+	//which defaults to the pickup location, so it is never moved into a batch
+	private static final String SYNC_STATE_FILENAME = "anon-grades-sync-state.properties";
+	private static final String STATE_LAST_FULL_RECONCILIATION = "lastFullReconciliation";
+	private static final String STATE_LAST_FINISHED_FILE_FINGERPRINT = "lastFinishedFileFingerprint";
+	//the batch that last started writing to the database, until a batch finishes writing; while set, the database may hold part of that batch's changes
+	private static final String STATE_UNFINISHED_WRITES = "unfinishedWrites";
+	//changes each time a sync has written to the database (whether or not it finished); every node's AnonGradingIDLookup reloads when it sees a new value
+	private static final String STATE_DATABASE_GENERATION = "databaseGeneration";
+
+	//marker left in the processing location while a batch is writing to the database; it holds the name of the batch folder so an interrupted batch can be resumed
+	private static final String RESUME_MARKER_FILENAME = ".anon-grades-resume";
+
+	//file in the processing location that a run holds a lock on, so only one run (on any node sharing the location) processes batches at a time
+	private static final String LOCK_FILENAME = ".anon-grades-lock";
 
 	//The actual directory of the processing files that this thread is currently using (subdirectory of the anongrading.processing.location)
 	private String threadProcessingLocation = "";
 
+	//fingerprint of the rows returned by the last call to getAnonGradingCSVRows
+	private String fingerprint = null;
+
+	//what parsing each csv file produced, for the last call to getAnonGradingCSVRows or sortAnonGradingCSVRows
+	private List<AnonGradingCSVFileStats> fileStats = new ArrayList<>();
+
+	//matches the names of the csv files when anongrading.csv.filenamePattern is set; created on first use
+	private PathMatcher csvFileNameMatcher = null;
+
+	//true if moveToProcessingDir picked up an interrupted batch instead of creating a new one
+	private boolean resumedBatch = false;
+
+	//the archive location; created on first use
+	private AnonGradingArchive archive = null;
+
+	//the on-disk sort of the CSV, if it was sorted rather than loaded; its temporary files live in the batch folder
+	private AnonGradingExternalSort externalSort = null;
+
 	public ServerConfigurationService getServerConfigurationService()
 	{
 		return (ServerConfigurationService) ComponentManager.get("org.sakaiproject.component.api.ServerConfigurationService");
@@ -73,14 +152,48 @@ public class AnonGradingCSVHandler
 		return getServerConfigurationService().getString(PROP_CSV_LOCATION, getDefaultCSVLocation());
 	}
 
+	/**
+	 * Gets the anonymous grading CSV's pickup location
+	 */
+	public File getPickupDir()
+	{
+		return new File(getCSVLocation());
+	}
+
 	/**
 	 * Gets the anonymous grading CSV's file name (excluding the path)
 	 */
-	private String getCSVFileName()
+	public String getCSVFileName()
 	{
 		return getServerConfigurationService().getString(PROP_CSV_FILENAME, DEFAULT_CSV_FILENAME);
 	}
 
+	/**
+	 * @return true if a file with the given name (excluding the path) is one of a batch's csv files
+	 */
+	public boolean isCSVFileName(String fileName)
+	{
+		String pattern = StringUtils.trimToNull(getServerConfigurationService().getString(PROP_CSV_FILENAME_PATTERN, null));
+		if (pattern == null)
+		{
+			return getCSVFileName().equals(fileName);
+		}
+
+		if (csvFileNameMatcher == null)
+		{
+			csvFileNameMatcher = FileSystems.getDefault().getPathMatcher("glob:" + pattern);
+		}
+		return csvFileNameMatcher.matches(Paths.get(fileName));
+	}
+
+	/**
+	 * @return the name of the file whose arrival marks the CSV as complete, or null if the CSV is complete once its size stops changing
+	 */
+	public String getWatchMarkerFileName()
+	{
+		return StringUtils.trimToNull(getServerConfigurationService().getString(PROP_WATCH_MARKER_FILE, null));
+	}
+
 	/**
 	 * Gets the location to move the anonymous grading CSV to be processed
 	 */
@@ -122,111 +235,627 @@ public class AnonGradingCSVHandler
 	}
 
 	/**
-	 * Parses the anon-grading csv file and stores the result in a List of AnonGradingCSVRows.
-	 * @return a list of AnonGradingCSVRows representing the contents of the CSV file
+	 * Parses the anon-grading csv file(s) and stores the result in an AnonGradingRowStore.
+	 * @return an AnonGradingRowStore representing the contents of the CSV file(s)
 	 * throws AnonGradingCSVParseException if there's an error
 	 */
-	public List<AnonGradingCSVRow> getAnonGradingCSVRows()
+	public AnonGradingRowStore getAnonGradingCSVRows()
 	{
-		List<AnonGradingCSVRow> csvRows = new ArrayList<>();
+		return getAnonGradingCSVRows(sectionEid -> {});
+	}
+
+	/**
+	 * Parses the anon-grading csv file(s) and stores the result in an AnonGradingRowStore, reporting each sectionEid as soon as it first appears
+	 * (so work that depends only on the sections can start before the whole feed has been parsed).
+	 * When a batch has several csv files, they are parsed concurrently and merged, in file name order, into one feed;
+	 * each sectionEid is still reported as soon as any file's parser finds it, not once its file is merged.
+	 * @param sectionListener receives each distinct sectionEid, on the calling thread
+	 * @return an AnonGradingRowStore representing the contents of the CSV file(s)
+	 * throws AnonGradingCSVParseException if there's an error
+	 */
+	public AnonGradingRowStore getAnonGradingCSVRows(Consumer<String> sectionListener)
+	{
+		List<AnonGradingCSVFileStats> stats = new ArrayList<>();
+		AnonGradingRowStore csvRows = parse(getCSVFiles(), sectionListener, stats);
+		fileStats = stats;
+		fingerprint = combineFingerprints(stats);
+		return csvRows;
+	}
 
-		//Get the location of the csv file. Assume it has been placed in the processing directory
-		String csvLocation = threadProcessingLocation + File.separator + getCSVFileName();
-		//Note: File objects aren't opened or closed, just useful to check the existence
-		File csvFile = new File(csvLocation);
-		if (!csvFile.exists())
+	/**
+	 * Parses csv files straight into an AnonGradingRowStore
+	 * @param stats receives each file's stats, in file order
+	 */
+	private AnonGradingRowStore parse(List<File> csvFiles, Consumer<String> sectionListener, List<AnonGradingCSVFileStats> stats)
+	{
+		if (csvFiles.size() == 1)
 		{
-			log.error("{} doesn't exist", csvLocation);
-			throw new AnonGradingCSVParseException("File doesn't exist");
+			AnonGradingRowStore csvRows = new AnonGradingRowStore();
+			stats.add(parseFile(createParser(), csvFiles.get(0), false, (sectionEid, userEid, gradingId, lineNumber) ->
+			{
+				if (csvRows.add(sectionEid, userEid, gradingId, lineNumber))
+				{
+					sectionListener.accept(sectionEid);
+				}
+			}));
+			return csvRows;
 		}
-		else
+
+		//each file gets its own parser and store; the row threshold applies to the feed as a whole.
+		//The parsers queue each sectionEid that is new to their file, and this thread passes on the ones new to the feed while it waits for the files
+		BlockingQueue<String> foundSections = new LinkedBlockingQueue<>();
+		Set<String> reportedSections = new HashSet<>();
+		Consumer<String> reportSection = sectionEid ->
+		{
+			if (reportedSections.add(sectionEid))
+			{
+				sectionListener.accept(sectionEid);
+			}
+		};
+		int threads = Math.min(csvFiles.size(), Runtime.getRuntime().availableProcessors());
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try
 		{
-			// Get the minimum and maximum grading IDs for validation to do later
-			int minGradingID = getMinimumGradingID();
-			int maxGradingID = getMaximumGradingID();
-			int threshold = getMinRowThreshold(); // OQJ-13  --plukasew
+			//a file is only submitted once there is a free slot, so besides the feed, at most one unmerged file store per thread is held at a time
+			List<Future<ParsedCSVFile>> results = new ArrayList<>(csvFiles.size());
+			for (int i = 0; i < threads; i++)
+			{
+				results.add(submitParse(executor, csvFiles.get(i), foundSections));
+			}
 
-			//this is somewhat based on sakora's CsvHandlerBase.setup(CsvSyncContext context) method
-			BufferedReader br = null;
-			CSVReader csvr = null;
-			try
+			//merge in file order, so the feed (and the first failure reported) doesn't depend on which file finishes first;
+			//line numbers run on from one file to the next, as they do when sorting on disk.
+			//The first file's store becomes the feed, and each later store is dropped as soon as it has been merged, freeing its slot for the next file
+			AnonGradingRowStore csvRows = null;
+			int lineOffset = 0;
+			for (int i = 0; i < csvFiles.size(); i++)
 			{
-				br = new BufferedReader(new FileReader(csvFile));
-				csvr = new CSVReader(br);
-				csvr.readNext();	// skip past the header
-				String[] line = csvr.readNext();
-				int lineNumber = 1;
-				while (line != null)
+				ParsedCSVFile parsed = getParsedFile(results.get(i), foundSections, reportSection);
+				results.set(i, null);
+				if (csvRows == null)
 				{
-					if (line.length == 1 && StringUtils.isBlank(line[0]))
-					{
-						//skip empty lines (they appear as having one empty string cell)
-						line = csvr.readNext();
-						++lineNumber;
-						continue;
-					}
+					csvRows = parsed.rows;
+				}
+				else
+				{
+					//every section of the file has already been reported
+					csvRows.addAll(parsed.rows, lineOffset, sectionEid -> {});
+				}
+				stats.add(parsed.stats);
+				lineOffset += parsed.stats.getLines();
+				parsed = null;
+				if (results.size() < csvFiles.size())
+				{
+					results.add(submitParse(executor, csvFiles.get(results.size()), foundSections));
+				}
+			}
+			checkRowThreshold(stats);
+			return csvRows;
+		}
+		finally
+		{
+			executor.shutdownNow();
+		}
+	}
 
-					if (line.length < 3)
-					{
-						throw new AnonGradingCSVParseException("CSV row is too short. Line #" + lineNumber);
-					}
-					String sectionEid = StringUtils.trimToEmpty(line[0]);
-					String userEid = StringUtils.trimToEmpty(line[1]);
-					Integer gradingId = null;
-					try
-					{
-						gradingId = Integer.parseInt(StringUtils.trimToEmpty(line[2]));
-						if (gradingId < minGradingID || gradingId > maxGradingID)
-						{
-							log.error("Grading ID out of range");
-							throw new AnonGradingCSVParseException("Grading ID is not between the minimum (" + minGradingID + ") and the maximum (" + maxGradingID + "): " + line[2] + "; userEid: " + userEid + "; sectionEid: " + sectionEid);
-						}
-					}
-					catch(NumberFormatException e)
-					{
-						log.error("nfe while parsing grading ID");
-						throw new AnonGradingCSVParseException("Grading ID is not an integer: " + line[2] + "; userEid: " + userEid + "; sectionEid: " + sectionEid);
-					}
-					AnonGradingCSVRow row = new AnonGradingCSVRow(sectionEid, userEid, gradingId);
-					csvRows.add(row);
-					line = csvr.readNext();
-					++lineNumber;
+	/**
+	 * Parses one of a batch's csv files into its own store on the executor
+	 * @param foundSections receives each sectionEid that is new to the file
+	 */
+	private Future<ParsedCSVFile> submitParse(ExecutorService executor, File csvFile, BlockingQueue<String> foundSections)
+	{
+		return executor.submit(() ->
+		{
+			AnonGradingRowStore fileRows = new AnonGradingRowStore();
+			AnonGradingCSVFileStats stat = parseFile(createParser(0), csvFile, true, (sectionEid, userEid, gradingId, lineNumber) ->
+			{
+				if (fileRows.add(sectionEid, userEid, gradingId, lineNumber))
+				{
+					foundSections.add(sectionEid);
 				}
+			});
+			return new ParsedCSVFile(fileRows, stat);
+		});
+	}
+
+	/**
+	 * Parses one csv file, timing it and counting its rows
+	 * @param nameInErrors prefix error messages with the file name, to say which of a batch's files is at fault
+	 */
+	private AnonGradingCSVFileStats parseFile(AnonGradingCSVParser parser, File csvFile, boolean nameInErrors, AnonGradingCSVParser.RowHandler handler)
+	{
+		long start = System.currentTimeMillis();
+		int[] rows = {0};
+		try
+		{
+			parser.parse(csvFile, (sectionEid, userEid, gradingId, lineNumber) ->
+			{
+				rows[0]++;
+				handler.handleRow(sectionEid, userEid, gradingId, lineNumber);
+			});
+		}
+		catch (AnonGradingCSVParseException e)
+		{
+			if (nameInErrors)
+			{
+				throw new AnonGradingCSVParseException(csvFile.getName() + ": " + e.getMessage(), e);
+			}
+			throw e;
+		}
+
+		AnonGradingCSVFileStats stats = new AnonGradingCSVFileStats(csvFile.getName(), csvFile.length(), rows[0], parser.getLastLineCount(),
+																	System.currentTimeMillis() - start, parser.getFingerprint());
+		log.info("Parsed {}", stats);
+		return stats;
+	}
 
-				// OQJ-13  --plukasew
-				if (lineNumber < threshold)
+	/**
+	 * Waits for a file to be parsed, reporting the sections found by any of the parsers in the meantime
+	 */
+	private ParsedCSVFile getParsedFile(Future<ParsedCSVFile> result, BlockingQueue<String> foundSections, Consumer<String> reportSection)
+	{
+		try
+		{
+			while (!result.isDone())
+			{
+				String sectionEid = foundSections.poll(100, TimeUnit.MILLISECONDS);
+				if (sectionEid != null)
 				{
-					log.error("Read only {} lines in CSV, threshold is ", lineNumber, threshold);
-					throw new AnonGradingCSVParseException("Minimum row threshold not met");
+					reportSection.accept(sectionEid);
 				}
 			}
-			catch (IOException e)
+			//the file's parser queued all of its sections before finishing
+			for (String sectionEid = foundSections.poll(); sectionEid != null; sectionEid = foundSections.poll())
+			{
+				reportSection.accept(sectionEid);
+			}
+			return result.get();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new AnonGradingCSVParseException("Interrupted while parsing CSV", e);
+		}
+		catch (ExecutionException e)
+		{
+			if (e.getCause() instanceof RuntimeException)
 			{
-				log.error("IOException while reading CSV");
-				throw new AnonGradingCSVParseException("IOException while reading CSV:\n" + e.getMessage(), e);
+				throw (RuntimeException) e.getCause();
 			}
-			finally
+			throw new AnonGradingCSVParseException("Unable to parse CSV: " + e.getCause(), e);
+		}
+	}
+
+	/**
+	 * Applies the minimum row threshold to the lines of all of a batch's files together (OQJ-13).
+	 * Each file's line count includes its header, but only one header is counted, so the files meet the threshold exactly when the same rows in a single file would
+	 */
+	private void checkRowThreshold(List<AnonGradingCSVFileStats> stats)
+	{
+		int lines = 0;
+		int headers = 0;
+		for (AnonGradingCSVFileStats stat : stats)
+		{
+			lines += stat.getLines();
+			if (stat.getLines() > 0)
+			{
+				headers++;
+			}
+		}
+		lines -= Math.max(0, headers - 1);
+		if (lines < getMinRowThreshold())
+		{
+			log.error("Read only {} lines in {} CSV files, threshold is {}", new Object[] {lines, stats.size(), getMinRowThreshold()});
+			throw new AnonGradingCSVParseException("Minimum row threshold not met");
+		}
+	}
+
+	/**
+	 * @return the fingerprint of a single file as is (so it matches batches from before multi-file support),
+	 * or for several files, the SHA-256 of their fingerprints in file name order
+	 */
+	private String combineFingerprints(List<AnonGradingCSVFileStats> stats)
+	{
+		if (stats.size() == 1)
+		{
+			return stats.get(0).getFingerprint();
+		}
+
+		try
+		{
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			for (AnonGradingCSVFileStats stat : stats)
+			{
+				digest.update((stat.getFingerprint() + "\n").getBytes(StandardCharsets.UTF_8));
+			}
+			return AnonGradingCSVParser.toHex(digest.digest());
+		}
+		catch (NoSuchAlgorithmException e)
+		{
+			throw new IllegalStateException("SHA-256 is not available", e);
+		}
+	}
+
+	/**
+	 * Parses the anon-grading csv file(s) and sorts them on disk, holding at most runSize rows in memory at once.
+	 * Several files are read one after the other into the same sort, so duplicates are detected across them.
+	 * The sort's temporary files are kept in the batch folder until deleteSortFiles is called or the batch is archived.
+	 * throws AnonGradingCSVParseException if there's an error
+	 * @throws java.io.IOException if the temporary files can't be written
+	 */
+	public AnonGradingExternalSort sortAnonGradingCSVRows(int runSize) throws IOException
+	{
+		List<File> csvFiles = getCSVFiles();
+		boolean multipleFiles = csvFiles.size() > 1;
+		AnonGradingCSVParser parser = multipleFiles ? createParser(0) : createParser();
+		List<AnonGradingCSVFileStats> stats = new ArrayList<>();
+		externalSort = AnonGradingExternalSort.sort(handler ->
+		{
+			//line numbers carry on from one file to the next, keeping the sort stable across files
+			int lineOffset = 0;
+			for (File csvFile : csvFiles)
+			{
+				int offset = lineOffset;
+				AnonGradingCSVFileStats stat = parseFile(parser, csvFile, multipleFiles,
+														(sectionEid, userEid, gradingId, lineNumber) -> handler.handleRow(sectionEid, userEid, gradingId, offset + lineNumber));
+				stats.add(stat);
+				lineOffset += stat.getLines();
+			}
+			if (multipleFiles)
+			{
+				checkRowThreshold(stats);
+			}
+		}, getProcessingDir(), runSize);
+		fileStats = stats;
+		fingerprint = combineFingerprints(stats);
+		return externalSort;
+	}
+
+	/**
+	 * @return what parsing each csv file produced, in file name order, for the last call to getAnonGradingCSVRows or sortAnonGradingCSVRows
+	 */
+	public List<AnonGradingCSVFileStats> getFileStats()
+	{
+		return fileStats;
+	}
+
+	/**
+	 * Removes the temporary files of the on-disk sort, if there is one
+	 */
+	public void deleteSortFiles()
+	{
+		if (externalSort != null)
+		{
+			externalSort.delete();
+			externalSort = null;
+		}
+	}
+
+	/**
+	 * @return the total size in bytes of the anon-grading csv file(s) in the processing directory
+	 */
+	public long getCSVFileSize()
+	{
+		long size = 0;
+		for (File csvFile : getCSVFiles())
+		{
+			size += csvFile.length();
+		}
+		return size;
+	}
+
+	/**
+	 * Gets the csv file(s), which are assumed to have been placed in the processing directory
+	 * throws AnonGradingCSVParseException if there are none
+	 */
+	private List<File> getCSVFiles()
+	{
+		List<File> csvFiles = listCSVFiles(new File(threadProcessingLocation));
+		if (csvFiles.isEmpty())
+		{
+			log.error("{} doesn't exist", threadProcessingLocation + File.separator + getCSVFileName());
+			throw new AnonGradingCSVParseException("File doesn't exist");
+		}
+		return csvFiles;
+	}
+
+	/**
+	 * @return the csv files in the given directory, sorted by name
+	 */
+	private List<File> listCSVFiles(File dir)
+	{
+		File[] files = dir.listFiles(file -> file.isFile() && isCSVFileName(file.getName()));
+		if (files == null)
+		{
+			return new ArrayList<>();
+		}
+		Arrays.sort(files, Comparator.comparing(File::getName));
+		return new ArrayList<>(Arrays.asList(files));
+	}
+
+	/**
+	 * Returns the number of threads to parse the csv with
+	 */
+	private int getParseParallelism()
+	{
+		int parallelism = getServerConfigurationService().getInt(PROP_PARSE_PARALLELISM, PARSE_PARALLELISM_DEFAULT);
+		return parallelism > 0 ? parallelism : Runtime.getRuntime().availableProcessors();
+	}
+
+	/**
+	 * Creates a parser using the minimum and maximum grading IDs for validation, and the minimum row threshold (OQJ-13  --plukasew)
+	 */
+	private AnonGradingCSVParser createParser()
+	{
+		return createParser(getMinRowThreshold());
+	}
+
+	private AnonGradingCSVParser createParser(int minRowThreshold)
+	{
+		return new AnonGradingCSVParser(getMinimumGradingID(), getMaximumGradingID(), minRowThreshold, getParseParallelism());
+	}
+
+	/**
+	 * @return the SHA-256 fingerprint of the content returned by the last call to getAnonGradingCSVRows
+	 */
+	public String getFingerprint()
+	{
+		return fingerprint;
+	}
+
+	/**
+	 * Hashes the csv file(s) as they are, without parsing them, so whether they are the ones last synced is known before the database is touched
+	 * @return the SHA-256 of each csv file's name and bytes, in file name order
+	 * throws AnonGradingCSVParseException if there are no csv files
+	 * @throws java.io.IOException
+	 */
+	public String computeFileFingerprint() throws IOException
+	{
+		try
+		{
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			byte[] buffer = new byte[1 << 16];
+			for (File csvFile : getCSVFiles())
 			{
-				try
+				digest.update((csvFile.getName() + "\n").getBytes(StandardCharsets.UTF_8));
+				try (InputStream in = new FileInputStream(csvFile))
 				{
-					if (csvr != null)
+					for (int read = in.read(buffer); read >= 0; read = in.read(buffer))
 					{
-						//closes the underlying reader
-						csvr.close();
+						digest.update(buffer, 0, read);
 					}
-					else if (br != null)
-					{
-						br.close();
-					}
-				}
-				catch (IOException e)
-				{
-					throw new AnonGradingCSVParseException("Error closing the CSVReader:\n" + e.getMessage(), e);
 				}
 			}
+			return AnonGradingCSVParser.toHex(digest.digest());
 		}
+		catch (NoSuchAlgorithmException e)
+		{
+			throw new IllegalStateException("SHA-256 is not available", e);
+		}
+	}
 
-		return csvRows;
+	/**
+	 * Saves the fingerprint of the parsed CSV into the batch folder so it is archived along with the CSV
+	 * @throws java.io.IOException
+	 */
+	public void saveFingerprint() throws IOException
+	{
+		Files.write(new File(threadProcessingLocation, FINGERPRINT_FILENAME).toPath(), fingerprint.getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Finds the fingerprint of the most recent batch that was archived as finished
+	 * @return the fingerprint, or null if there is no finished batch or it has no fingerprint
+	 * @throws java.io.IOException
+	 */
+	public String getLastFinishedFingerprint() throws IOException
+	{
+		AnonGradingArchive.Entry latest = getArchive().getLatestFinished();
+		return latest == null ? null : latest.getFingerprint();
+	}
+
+	/**
+	 * Parses the CSV of the most recent batch that was archived as finished, applying the same validation as the current CSV
+	 * @return the previous CSV's rows, or null if there is no finished batch or its CSV can't be read
+	 */
+	public AnonGradingRowStore getPreviousCSVRows()
+	{
+		File workDir = new File(threadProcessingLocation, PREVIOUS_CSV_DIRNAME);
+		try
+		{
+			AnonGradingArchive.Entry latest = getArchive().getLatestFinished();
+			if (latest == null || !latest.getFile().exists())
+			{
+				return null;
+			}
+
+			List<File> previousCSVs = listCSVFiles(getArchive().unpackCSVFiles(latest, this::isCSVFileName, workDir));
+			if (previousCSVs.isEmpty())
+			{
+				return null;
+			}
+
+			log.info("Reading previous CSV from {}", latest.getFile());
+			return parse(previousCSVs, sectionEid -> {}, new ArrayList<>());
+		}
+		catch (AnonGradingCSVParseException | IOException e)
+		{
+			log.warn("Unable to read the previous CSV: {}", e.getMessage());
+			return null;
+		}
+		finally
+		{
+			//the extracted copy isn't worth archiving
+			try
+			{
+				AnonGradingArchive.deleteRecursively(workDir.toPath());
+			}
+			catch (IOException e)
+			{
+				log.warn("Unable to delete {}: {}", workDir, e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * @return the time (in milliseconds) of the last successful full reconciliation against the database, or 0 if there hasn't been one
+	 * @throws java.io.IOException
+	 */
+	public long getLastFullReconciliation() throws IOException
+	{
+		return Long.parseLong(loadSyncState().getProperty(STATE_LAST_FULL_RECONCILIATION, "0"));
+	}
+
+	/**
+	 * Records that a full reconciliation against the database has just completed successfully
+	 * @throws java.io.IOException
+	 */
+	public void recordFullReconciliation() throws IOException
+	{
+		recordSyncState(STATE_LAST_FULL_RECONCILIATION, String.valueOf(System.currentTimeMillis()));
+	}
+
+	/**
+	 * @return the file fingerprint (see computeFileFingerprint) of the last batch archived as finished, or null if none has been recorded
+	 * @throws java.io.IOException
+	 */
+	public String getLastFinishedFileFingerprint() throws IOException
+	{
+		return loadSyncState().getProperty(STATE_LAST_FINISHED_FILE_FINGERPRINT);
+	}
+
+	/**
+	 * Records the file fingerprint of a batch that has just been archived as finished
+	 * @param fileFingerprint the batch's file fingerprint, or null if its files weren't hashed
+	 * @throws java.io.IOException
+	 */
+	public void recordFinishedFileFingerprint(String fileFingerprint) throws IOException
+	{
+		recordSyncState(STATE_LAST_FINISHED_FILE_FINGERPRINT, fileFingerprint);
+	}
+
+	/**
+	 * @return the name of the batch that started writing to the database and hasn't finished (it failed, was abandoned for a newer CSV, or is being resumed),
+	 * or null if every batch that started writing has finished. Until one finishes, the database may hold part of its changes, so it can't be assumed to match the last finished batch
+	 * @throws java.io.IOException
+	 */
+	public String getUnfinishedWrites() throws IOException
+	{
+		return loadSyncState().getProperty(STATE_UNFINISHED_WRITES);
+	}
+
+	/**
+	 * Records that the batch being processed has written all of its changes, so the database matches its CSV
+	 * @throws java.io.IOException
+	 */
+	public void recordWritesFinished() throws IOException
+	{
+		recordSyncState(STATE_UNFINISHED_WRITES, null);
+	}
+
+	/**
+	 * @return the database generation last recorded by recordDatabaseChanged, on any node sharing the processing location; or null if none has been recorded
+	 * @throws java.io.IOException
+	 */
+	public String getDatabaseGeneration() throws IOException
+	{
+		return loadSyncState().getProperty(STATE_DATABASE_GENERATION);
+	}
+
+	/**
+	 * Records that the batch being processed has written to the database, so the lookups on every node sharing the processing location know to reload
+	 * @return the new database generation
+	 * @throws java.io.IOException
+	 */
+	public String recordDatabaseChanged() throws IOException
+	{
+		String databaseGeneration = getProcessingDir().getName() + "@" + System.currentTimeMillis();
+		recordSyncState(STATE_DATABASE_GENERATION, databaseGeneration);
+		return databaseGeneration;
+	}
+
+	/**
+	 * Other nodes read the state while it is recorded, so it is written to a temporary file and moved into place
+	 * @param value the value to record, or null to remove the key
+	 */
+	private void recordSyncState(String key, String value) throws IOException
+	{
+		Properties state = loadSyncState();
+		if (value == null)
+		{
+			state.remove(key);
+		}
+		else
+		{
+			state.setProperty(key, value);
+		}
+		File processingDir = new File(getProcessingLocation());
+		processingDir.mkdirs();
+		File stateFile = new File(processingDir, SYNC_STATE_FILENAME);
+		File tempFile = new File(processingDir, SYNC_STATE_FILENAME + ".tmp");
+		try (OutputStream out = new FileOutputStream(tempFile))
+		{
+			state.store(out, "anonymous grading sync state");
+		}
+		try
+		{
+			Files.move(tempFile.toPath(), stateFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+		catch (AtomicMoveNotSupportedException e)
+		{
+			Files.move(tempFile.toPath(), stateFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	private Properties loadSyncState() throws IOException
+	{
+		Properties state = new Properties();
+		File stateFile = new File(getProcessingLocation(), SYNC_STATE_FILENAME);
+		if (!stateFile.exists())
+		{
+			//earlier versions kept the state in the archive location; read it from there until it is next recorded
+			stateFile = new File(getArchiveLocation(), SYNC_STATE_FILENAME);
+		}
+		if (stateFile.exists())
+		{
+			try (InputStream in = new FileInputStream(stateFile))
+			{
+				state.load(in);
+			}
+		}
+		return state;
+	}
+
+	private AnonGradingArchive getArchive()
+	{
+		if (archive == null)
+		{
+			archive = new AnonGradingArchive(new File(getArchiveLocation()), BATCH_PREFIX, FINGERPRINT_FILENAME);
+		}
+		return archive;
+	}
+
+	/**
+	 * Locks the processing location against runs in other JVMs. Runs within this JVM must be kept apart by the caller: a JVM can only hold the lock once.
+	 * @return the lock, which must be closed when the run is over; or null if another process holds it
+	 * @throws java.io.IOException
+	 */
+	public Closeable tryLockProcessingLocation() throws IOException
+	{
+		File processingDir = new File(getProcessingLocation());
+		processingDir.mkdirs();
+		FileChannel channel = FileChannel.open(new File(processingDir, LOCK_FILENAME).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+		FileLock lock = channel.tryLock();
+		if (lock == null)
+		{
+			channel.close();
+			return null;
+		}
+		return () ->
+		{
+			lock.release();
+			channel.close();
+		};
 	}
 
 	/**
@@ -235,6 +864,26 @@ public class AnonGradingCSVHandler
 	 */
 	public void moveToProcessingDir() throws IOException
 	{
+		//If a previous run was interrupted while writing to the database, resume it unless a new CSV has been dropped off in the meantime
+		File interruptedBatch = getInterruptedBatch();
+		if (interruptedBatch != null)
+		{
+			threadProcessingLocation = interruptedBatch.getPath();
+			if (!listCSVFiles(new File(getCSVLocation())).isEmpty())
+			{
+				//the new CSV supersedes the interrupted batch, which is archived as failed. The database may hold part of its changes, and the sync state keeps naming it
+				//until a batch finishes writing, so the new CSV is compared against the database (in full, in delta mode) even if it matches the last finished batch
+				log.warn("A new CSV has arrived; abandoning interrupted batch {}", interruptedBatch);
+				archiveCSV(false);
+			}
+			else
+			{
+				log.info("Resuming interrupted batch {}", interruptedBatch);
+				resumedBatch = true;
+				return;
+			}
+		}
+
 		//Create the processing batch folder within the processing location. The batch folder will be marked with the current time, and threadProcessingLocation will keep track of this
 		threadProcessingLocation = getProcessingLocation() + File.separator + BATCH_PREFIX + System.currentTimeMillis();
 		File processingPath = new File(threadProcessingLocation);
@@ -245,31 +894,184 @@ public class AnonGradingCSVHandler
 	}
 
 
+	/**
+	 * Copies the csv file(s) from the pickup location into a new plan folder in the processing location.
+	 * A plan only reports what a sync would do, so the pickup location is left as it is for the next real run
+	 * @throws java.io.IOException
+	 */
+	public void copyToPlanDir() throws IOException
+	{
+		threadProcessingLocation = getProcessingLocation() + File.separator + PLAN_PREFIX + System.currentTimeMillis();
+		File planDir = new File(threadProcessingLocation);
+		planDir.mkdirs();
+		for (File csvFile : listCSVFiles(getPickupDir()))
+		{
+			Files.copy(csvFile.toPath(), new File(planDir, csvFile.getName()).toPath());
+		}
+	}
+
+	/**
+	 * Applies the archive's retention settings to the plan folders in the processing location: plans beyond the newest anongrading.archive.retention.maxBatches,
+	 * or older than anongrading.archive.retention.maxAgeDays days, are deleted. The newest plan (normally the one just made) is always kept for review
+	 * @return the number of plan folders deleted
+	 * @throws java.io.IOException
+	 */
+	public int prunePlans() throws IOException
+	{
+		int maxPlans = getServerConfigurationService().getInt(PROP_ARCHIVE_MAX_BATCHES, 0);
+		int maxAgeDays = getServerConfigurationService().getInt(PROP_ARCHIVE_MAX_AGE_DAYS, 0);
+		if (maxPlans <= 0 && maxAgeDays <= 0)
+		{
+			return 0;
+		}
+
+		File[] planDirs = new File(getProcessingLocation()).listFiles(file -> file.isDirectory() && getPlanTime(file) >= 0);
+		if (planDirs == null)
+		{
+			return 0;
+		}
+		//newest first
+		Arrays.sort(planDirs, Comparator.comparingLong(AnonGradingCSVHandler::getPlanTime).reversed());
+
+		long cutoff = maxAgeDays > 0 ? System.currentTimeMillis() - TimeUnit.DAYS.toMillis(maxAgeDays) : Long.MIN_VALUE;
+		int deleted = 0;
+		for (int i = 1; i < planDirs.length; i++)
+		{
+			if ((maxPlans > 0 && i >= maxPlans) || getPlanTime(planDirs[i]) < cutoff)
+			{
+				AnonGradingArchive.deleteRecursively(planDirs[i].toPath());
+				deleted++;
+			}
+		}
+
+		if (deleted > 0)
+		{
+			log.info("Pruned {} plan folders from {}; {} remain", new Object[] {deleted, getProcessingLocation(), planDirs.length - deleted});
+		}
+		return deleted;
+	}
+
+	/**
+	 * @return the time in a plan folder's name, or -1 if it isn't a plan folder
+	 */
+	private static long getPlanTime(File planDir)
+	{
+		if (!planDir.getName().startsWith(PLAN_PREFIX))
+		{
+			return -1;
+		}
+		try
+		{
+			return Long.parseLong(planDir.getName().substring(PLAN_PREFIX.length()));
+		}
+		catch (NumberFormatException e)
+		{
+			return -1;
+		}
+	}
+
 	/**
 	 * Archives the CSV file from the processing directory into the archiving directory
 	 * @param success archive's title will include the word 'finished' if true; 'failed' if false
+	 * @return the archived batch (a zip file, or a folder if compression is off)
+	 * @throws java.io.IOException
+	 */
+	public File archiveCSV(boolean success) throws IOException
+	{
+		return archiveCSV(success, batchDir -> {});
+	}
+
+	/**
+	 * Archives the CSV file from the processing directory into the archiving directory, then applies the retention policy to the archive
+	 * @param success archive's title will include the word 'finished' if true; 'failed' if false
+	 * @param beforeClose called with the batch folder just before the archive is closed; files it writes into the folder are archived too
+	 * @return the archived batch (a zip file, or a folder if compression is off)
 	 * @throws java.io.IOException
 	 */
-	public void archiveCSV(boolean success) throws IOException
+	public File archiveCSV(boolean success, Consumer<File> beforeClose) throws IOException
 	{
-		//Get the processing directory
-		String processingLocation = threadProcessingLocation;
-		File processingDir = new File (processingLocation);
+		//the sort's temporary files aren't worth archiving
+		deleteSortFiles();
 
-		//Ensure the archiving location exists
-		String archiveLocation = getArchiveLocation();
-		File archiveParent = new File(archiveLocation);
-		if (!archiveParent.exists())
+		File processingDir = new File(threadProcessingLocation);
+		boolean compress = getServerConfigurationService().getBoolean(PROP_ARCHIVE_COMPRESS, true);
+		long start = System.currentTimeMillis();
+		File archived = getArchive().archive(processingDir, success, compress, beforeClose);
+		log.info("Archived {} to {} ({} bytes) in {} ms", new Object[] {processingDir, archived, archived.length(), System.currentTimeMillis() - start});
+
+		//The batch is no longer in the processing location, so there is nothing to resume
+		File resumeMarker = new File(getProcessingLocation(), RESUME_MARKER_FILENAME);
+		if (resumeMarker.exists() && processingDir.getName().equals(readResumeMarker(resumeMarker)))
 		{
-			archiveParent.mkdirs();
+			Files.delete(resumeMarker.toPath());
 		}
 
-		//Create the archive subfolder (in memory, not physically yet)
-		String suffix = success ? FINISHED_SUFFIX : FAILED_SUFFIX;
-		String archiveDir = archiveLocation + File.separator + BATCH_PREFIX + System.currentTimeMillis() + suffix; 
-		File archivePath = new File(archiveDir);
-		//Move the precessing directory itself to the archive
-		processingDir.renameTo(archivePath);
+		//the batch is safely archived, so failing to prune only leaves old batches around for the next run
+		try
+		{
+			getArchive().prune(getServerConfigurationService().getInt(PROP_ARCHIVE_MAX_BATCHES, 0),
+								getServerConfigurationService().getInt(PROP_ARCHIVE_MAX_AGE_DAYS, 0));
+		}
+		catch (IOException e)
+		{
+			log.warn("Unable to prune the archive location {}: {}", getArchiveLocation(), e.getMessage());
+		}
+		return archived;
+	}
+
+	/**
+	 * @return the batch folder currently being processed
+	 */
+	public File getProcessingDir()
+	{
+		return new File(threadProcessingLocation);
+	}
+
+	/**
+	 * @return true if the batch being processed was interrupted in a previous run
+	 */
+	public boolean isResumedBatch()
+	{
+		return resumedBatch;
+	}
+
+	/**
+	 * Marks the batch being processed as writing to the database. Until the batch is archived, the next run will resume it rather than start a new one;
+	 * and until a batch finishes writing, the sync state records that the database may hold part of this batch's changes (see getUnfinishedWrites)
+	 * @throws java.io.IOException
+	 */
+	public void markForResume() throws IOException
+	{
+		recordSyncState(STATE_UNFINISHED_WRITES, getProcessingDir().getName());
+		Path resumeMarker = new File(getProcessingLocation(), RESUME_MARKER_FILENAME).toPath();
+		Files.write(resumeMarker, getProcessingDir().getName().getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Finds the batch folder named by the resume marker
+	 * @return the interrupted batch folder, or null if there isn't one
+	 */
+	private File getInterruptedBatch() throws IOException
+	{
+		File resumeMarker = new File(getProcessingLocation(), RESUME_MARKER_FILENAME);
+		if (!resumeMarker.exists())
+		{
+			return null;
+		}
+
+		File batchDir = new File(getProcessingLocation(), readResumeMarker(resumeMarker));
+		if (!batchDir.isDirectory())
+		{
+			log.warn("Interrupted batch {} no longer exists; ignoring", batchDir);
+			Files.delete(resumeMarker.toPath());
+			return null;
+		}
+		return batchDir;
+	}
+
+	private String readResumeMarker(File resumeMarker) throws IOException
+	{
+		return new String(Files.readAllBytes(resumeMarker.toPath()), StandardCharsets.UTF_8).trim();
 	}
 
 	/**
@@ -277,7 +1079,8 @@ public class AnonGradingCSVHandler
 	 * Move files in one directory into another. Both dirs
 	 * must already exist. Bails with an IOException on the first 
 	 * failed file move. Performs no cleanup as the result of
-	 * such failure. Skips directory.
+	 * such failure. Only moves the batch's files (the csv files and the watch marker): the pickup location is also the default
+	 * archive and processing location, so archived batches, the archive index, the sync state, the lock and temporary files stay where they are.
 	 *
 	 * @param from
 	 * @param to
@@ -303,9 +1106,10 @@ public class AnonGradingCSVHandler
 		{
 			throw new IllegalArgumentException("Target directory is not a directory [" + toDir + "]");
 		}
+		String markerFileName = getWatchMarkerFileName();
 		for (File file : fromDir.listFiles())
 		{
-			if (file.isDirectory())
+			if (file.isDirectory() || !(isCSVFileName(file.getName()) || file.getName().equals(markerFileName)))
 			{
 				continue;
 			}
@@ -327,4 +1131,19 @@ public class AnonGradingCSVHandler
 		String filePath = homePath + File.separator + DEFAULT_CSV_LOCATION;
 		return filePath;
 	}
+
+	/**
+	 * The rows and stats of one of a batch's csv files
+	 */
+	private static final class ParsedCSVFile
+	{
+		private final AnonGradingRowStore rows;
+		private final AnonGradingCSVFileStats stats;
+
+		private ParsedCSVFile(AnonGradingRowStore rows, AnonGradingCSVFileStats stats)
+		{
+			this.rows = rows;
+			this.stats = stats;
+		}
+	}
 } // end class
@@ -0,0 +1,790 @@
+package ca.uwo.owl.quartz.jobs.anongrading;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import lombok.extern.slf4j.Slf4j;
+
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * A purpose-built parser for the three column (sectionEid, userEid, gradingId) anonymous grading CSV.
+ *
+ * The file is memory mapped and scanned byte by byte; only the section and user EIDs are decoded (explicitly as UTF-8),
+ * and the grading ID is parsed straight from the mapped bytes. The rules are the same as they were with opencsv:
+ * the first line is a header, blank lines are skipped, rows with fewer than three columns are rejected, grading IDs must fall within the configured range,
+ * and the file must meet the minimum row threshold. Line numbers count from the first line after the header.
+ * Quoted fields are supported, but they may not span lines.
+ *
+ * While parsing, a SHA-256 fingerprint of the normalised content (the trimmed cells of every accepted row, in order) is computed,
+ * so feeds that differ only in whitespace, line endings, quoting or blank lines have the same fingerprint.
+ */
+@Slf4j
+public class AnonGradingCSVParser
+{
+	//the largest region of the file mapped at once; a region always ends on a line break
+	private static final long MAX_WINDOW_SIZE = Integer.MAX_VALUE;
+
+	private static final byte COMMA = ',';
+	private static final byte QUOTE = '"';
+	private static final byte CR = '\r';
+	private static final byte LF = '\n';
+
+	//returned by parseGradingID when the bytes are not an integer
+	private static final long NOT_AN_INTEGER = Long.MIN_VALUE;
+
+	//a parallel parse splits each window into about this many ranges per thread (for load balancing), but no range is smaller than MIN_RANGE_SIZE bytes
+	private static final int RANGES_PER_THREAD = 4;
+	private static final int MIN_RANGE_SIZE = 1 << 20;
+
+	//a parallel parse holds a window's rows until they are handed over in file order, so it maps only this many bytes per thread at a time
+	private static final long PARALLEL_WINDOW_SIZE_PER_THREAD = (long) RANGES_PER_THREAD * MIN_RANGE_SIZE;
+
+	private final int minGradingID;
+	private final int maxGradingID;
+	private final int minRowThreshold;
+
+	//the number of threads a file is parsed with; 1 parses on the calling thread
+	private final int parallelism;
+
+	//reusable buffer used to decode EIDs, and the length of the last value decoded into it
+	private byte[] scratch = new byte[128];
+	private int scratchLength = 0;
+
+	//fingerprint of the rows parsed so far; each row contributes sectionEid \0 userEid \0 gradingId (4 bytes, big-endian) \n
+	private final MessageDigest fingerprint;
+	private final byte[] fingerprintSeparator = new byte[] {0};
+	private final byte[] fingerprintGradingID = new byte[5];
+	private String lastFingerprint = null;
+
+	//the number of lines in the last file parsed (as counted for the row threshold)
+	private int lastLineCount = 0;
+
+	//when this parser is parsing one range of a parallel parse, the fingerprint input is recorded here (in file order) instead of being digested
+	private byte[] fingerprintInput = null;
+	private int fingerprintInputLength = 0;
+
+	/**
+	 * Receives each accepted row as it is parsed
+	 */
+	public interface RowHandler
+	{
+		/**
+		 * @param lineNumber the row's line number, counting from the first line after the header
+		 */
+		void handleRow(String sectionEid, String userEid, int gradingId, int lineNumber);
+	}
+
+	public AnonGradingCSVParser(int minGradingID, int maxGradingID, int minRowThreshold)
+	{
+		this(minGradingID, maxGradingID, minRowThreshold, 1);
+	}
+
+	/**
+	 * @param parallelism the number of threads to parse with; files too small to split are always parsed on the calling thread
+	 */
+	public AnonGradingCSVParser(int minGradingID, int maxGradingID, int minRowThreshold, int parallelism)
+	{
+		this.minGradingID = minGradingID;
+		this.maxGradingID = maxGradingID;
+		this.minRowThreshold = minRowThreshold;
+		this.parallelism = Math.max(1, parallelism);
+		try
+		{
+			fingerprint = MessageDigest.getInstance("SHA-256");
+		}
+		catch (NoSuchAlgorithmException e)
+		{
+			throw new IllegalStateException("SHA-256 is not available", e);
+		}
+	}
+
+	/**
+	 * @return the hex encoded SHA-256 fingerprint of the rows in the last successfully parsed file, or null if nothing has been parsed
+	 */
+	public String getFingerprint()
+	{
+		return lastFingerprint;
+	}
+
+	/**
+	 * @return the number of lines in the last file parsed, including the header (as counted against the minimum row threshold), or 0 if nothing has been parsed
+	 */
+	public int getLastLineCount()
+	{
+		return lastLineCount;
+	}
+
+	/**
+	 * Parses the given anon-grading csv file.
+	 * @return a list of AnonGradingCSVRows representing the contents of the CSV file
+	 * throws AnonGradingCSVParseException if there's an error
+	 */
+	public List<AnonGradingCSVRow> parse(File csvFile)
+	{
+		List<AnonGradingCSVRow> csvRows = new ArrayList<>();
+		parse(csvFile, (sectionEid, userEid, gradingId, lineNumber) -> csvRows.add(new AnonGradingCSVRow(sectionEid, userEid, gradingId)));
+		return csvRows;
+	}
+
+	/**
+	 * Parses the given anon-grading csv file, handing each row to the handler rather than collecting them, so the rows never need to be held in memory at once.
+	 * The fingerprint is only available once the whole file has been parsed successfully.
+	 * throws AnonGradingCSVParseException if there's an error
+	 */
+	public void parse(File csvFile, RowHandler handler)
+	{
+		fingerprint.reset();
+		lastFingerprint = null;
+		lastLineCount = 0;
+
+		//the number of lines read so far, including the header
+		int linesRead = 0;
+		ForkJoinPool pool = null;
+		try (FileChannel channel = FileChannel.open(csvFile.toPath(), StandardOpenOption.READ))
+		{
+			long size = channel.size();
+			long maxWindowSize = parallelism == 1 ? MAX_WINDOW_SIZE : Math.min(parallelism * PARALLEL_WINDOW_SIZE_PER_THREAD, MAX_WINDOW_SIZE);
+			long position = 0;
+			while (position < size)
+			{
+				long windowSize = Math.min(size - position, maxWindowSize);
+				MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, position, windowSize);
+				int limit = (int) windowSize;
+				if (position + windowSize < size)
+				{
+					//don't split a line across windows
+					limit = lastLineBreak(window, limit) + 1;
+					if (limit == 0)
+					{
+						throw new AnonGradingCSVParseException("CSV line is too long. Line #" + linesRead);
+					}
+				}
+
+				int[] rangeBounds = splitIntoRanges(window, limit);
+				if (rangeBounds.length > 2)
+				{
+					if (pool == null)
+					{
+						pool = new ForkJoinPool(parallelism);
+					}
+					linesRead = parseRanges(window, rangeBounds, linesRead, handler, pool);
+				}
+				else
+				{
+					linesRead = parseLines(window, limit, linesRead, handler);
+				}
+				position += limit;
+			}
+		}
+		catch (IOException e)
+		{
+			log.error("IOException while reading CSV");
+			throw new AnonGradingCSVParseException("IOException while reading CSV:\n" + e.getMessage(), e);
+		}
+		finally
+		{
+			if (pool != null)
+			{
+				pool.shutdown();
+			}
+		}
+
+		// OQJ-13  --plukasew
+		int lineNumber = Math.max(linesRead, 1);
+		lastLineCount = lineNumber;
+		if (lineNumber < minRowThreshold)
+		{
+			log.error("Read only {} lines in CSV, threshold is {}", lineNumber, minRowThreshold);
+			throw new AnonGradingCSVParseException("Minimum row threshold not met");
+		}
+
+		lastFingerprint = toHex(fingerprint.digest());
+	}
+
+	/**
+	 * Splits buffer[0, limit) into ranges that each end with a line feed (except the last), for parsing in parallel.
+	 * Quoted fields can't span lines, so every range starts at the beginning of a line.
+	 * @return the range boundaries: range i is [bounds[i], bounds[i + 1]); a single range if the buffer is too small to be worth splitting
+	 */
+	private int[] splitIntoRanges(ByteBuffer buffer, int limit)
+	{
+		int rangeCount = (int) Math.min((long) parallelism * RANGES_PER_THREAD, limit / MIN_RANGE_SIZE);
+		if (parallelism == 1 || rangeCount < 2)
+		{
+			return new int[] {0, limit};
+		}
+
+		List<Integer> bounds = new ArrayList<>(rangeCount + 1);
+		bounds.add(0);
+		for (int i = 1; i < rangeCount; i++)
+		{
+			int bound = Math.max((int) ((long) limit * i / rangeCount), bounds.get(bounds.size() - 1));
+			while (bound < limit && buffer.get(bound) != LF)
+			{
+				bound++;
+			}
+			bound++;
+			if (bound < limit)
+			{
+				bounds.add(bound);
+			}
+		}
+		bounds.add(limit);
+
+		int[] result = new int[bounds.size()];
+		for (int i = 0; i < result.length; i++)
+		{
+			result[i] = bounds.get(i);
+		}
+		return result;
+	}
+
+	/**
+	 * Parses each range of buffer on the pool, handing the rows to the handler (and adding them to the fingerprint) in file order on the calling thread,
+	 * each range as soon as it and the ranges before it have been parsed. The lines in each range are counted first, so every row and every exception carries the same line number as it would in a sequential parse,
+	 * and the exception thrown is the one for the first bad line in the file.
+	 * @param rangeBounds the ranges, as returned by splitIntoRanges
+	 * @param linesRead the number of lines preceding the buffer; the line at index 0 is the header
+	 * @return the number of lines read, including those preceding the buffer
+	 */
+	private int parseRanges(ByteBuffer buffer, int[] rangeBounds, int linesRead, RowHandler handler, ForkJoinPool pool)
+	{
+		int rangeCount = rangeBounds.length - 1;
+		List<Callable<Integer>> counts = new ArrayList<>(rangeCount);
+		for (int i = 0; i < rangeCount; i++)
+		{
+			ByteBuffer range = slice(buffer, rangeBounds[i], rangeBounds[i + 1]);
+			counts.add(() -> countLines(range));
+		}
+
+		int[] firstLines = new int[rangeCount];
+		List<Future<Integer>> countResults = pool.invokeAll(counts);
+		for (int i = 0; i < rangeCount; i++)
+		{
+			firstLines[i] = linesRead;
+			linesRead += getResult(countResults.get(i));
+		}
+
+		List<Future<ParsedRange>> parseResults = new ArrayList<>(rangeCount);
+		for (int i = 0; i < rangeCount; i++)
+		{
+			ByteBuffer range = slice(buffer, rangeBounds[i], rangeBounds[i + 1]);
+			int firstLine = firstLines[i];
+			parseResults.add(pool.submit(() -> parseRange(range, firstLine)));
+		}
+
+		for (int i = 0; i < rangeCount; i++)
+		{
+			ParsedRange range = getResult(parseResults.get(i));
+			//drop the range's rows once they've been handed over
+			parseResults.set(i, null);
+			fingerprint.update(range.fingerprintInput, 0, range.fingerprintInputLength);
+			range.replay(handler);
+		}
+
+		return linesRead;
+	}
+
+	/**
+	 * Parses one range with a parser of its own (parsers aren't thread safe), collecting the rows and recording the fingerprint input.
+	 * If the range has a bad line, the rows before it are still collected.
+	 */
+	private ParsedRange parseRange(ByteBuffer range, int firstLine)
+	{
+		AnonGradingCSVParser rangeParser = new AnonGradingCSVParser(minGradingID, maxGradingID, minRowThreshold);
+		rangeParser.fingerprintInput = new byte[Math.max(16, range.limit())];
+		ParsedRange parsed = new ParsedRange();
+		try
+		{
+			rangeParser.parseLines(range, range.limit(), firstLine, parsed);
+		}
+		catch (AnonGradingCSVParseException e)
+		{
+			//held until the rows before it have been handed over, as they would have been in a sequential parse
+			parsed.exception = e;
+		}
+		parsed.fingerprintInput = rangeParser.fingerprintInput;
+		parsed.fingerprintInputLength = rangeParser.fingerprintInputLength;
+		return parsed;
+	}
+
+	/**
+	 * Waits for a task, rethrowing anything it threw
+	 */
+	private static <T> T getResult(Future<T> future)
+	{
+		try
+		{
+			return future.get();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new AnonGradingCSVParseException("Interrupted while parsing CSV", e);
+		}
+		catch (ExecutionException e)
+		{
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException)
+			{
+				throw (RuntimeException) cause;
+			}
+			if (cause instanceof Error)
+			{
+				throw (Error) cause;
+			}
+			throw new AnonGradingCSVParseException("Unable to parse CSV: " + cause, e);
+		}
+	}
+
+	/**
+	 * Counts the lines in a buffer the same way parseLines does: every \n, \r or \r\n ends a line, and so does the end of the buffer
+	 */
+	private static int countLines(ByteBuffer buffer)
+	{
+		int limit = buffer.limit();
+		int lines = 0;
+		for (int i = 0; i < limit; i++)
+		{
+			byte b = buffer.get(i);
+			if (b == LF)
+			{
+				lines++;
+			}
+			else if (b == CR)
+			{
+				lines++;
+				if (i + 1 < limit && buffer.get(i + 1) == LF)
+				{
+					i++;
+				}
+			}
+		}
+		if (limit > 0)
+		{
+			byte last = buffer.get(limit - 1);
+			if (last != LF && last != CR)
+			{
+				lines++;
+			}
+		}
+		return lines;
+	}
+
+	/**
+	 * @return buffer[from, to) as a buffer of its own, indexed from 0
+	 */
+	private static ByteBuffer slice(ByteBuffer buffer, int from, int to)
+	{
+		ByteBuffer range = buffer.duplicate();
+		range.position(from);
+		range.limit(to);
+		return range.slice();
+	}
+
+	/**
+	 * Parses every line in buffer[0, limit) and hands the resulting rows to the handler
+	 * @param linesRead the number of lines preceding this buffer; the line at index 0 is the header
+	 * @return the number of lines read, including those preceding this buffer
+	 */
+	private int parseLines(ByteBuffer buffer, int limit, int linesRead, RowHandler handler)
+	{
+		int position = 0;
+		while (position < limit)
+		{
+			//find the end of the line, taking note of the column separators as we go
+			int firstComma = -1;
+			int secondComma = -1;
+			int thirdComma = -1;
+			boolean quoted = false;
+			int lineEnd = position;
+			for (; lineEnd < limit; lineEnd++)
+			{
+				byte b = buffer.get(lineEnd);
+				if (b == LF || b == CR)
+				{
+					break;
+				}
+				else if (b == COMMA)
+				{
+					if (firstComma < 0)
+					{
+						firstComma = lineEnd;
+					}
+					else if (secondComma < 0)
+					{
+						secondComma = lineEnd;
+					}
+					else if (thirdComma < 0)
+					{
+						thirdComma = lineEnd;
+					}
+				}
+				else if (b == QUOTE)
+				{
+					quoted = true;
+				}
+			}
+
+			int lineNumber = linesRead++;
+			if (lineNumber > 0)
+			{
+				if (quoted)
+				{
+					String[] line = splitQuotedLine(decode(buffer, position, lineEnd));
+					parseRow(line, lineNumber, handler);
+				}
+				else if (firstComma < 0)
+				{
+					//a single cell; skip it if it's empty, otherwise it's too short
+					if (!StringUtils.isBlank(decode(buffer, position, lineEnd)))
+					{
+						throw new AnonGradingCSVParseException("CSV row is too short. Line #" + lineNumber);
+					}
+				}
+				else if (secondComma < 0)
+				{
+					throw new AnonGradingCSVParseException("CSV row is too short. Line #" + lineNumber);
+				}
+				else
+				{
+					int gradingIDEnd = thirdComma < 0 ? lineEnd : thirdComma;
+					String sectionEid = decodeTrimmed(buffer, position, firstComma);
+					addToFingerprint(scratch, scratchLength);
+					addToFingerprint(fingerprintSeparator, 1);
+					String userEid = decodeTrimmed(buffer, firstComma + 1, secondComma);
+					addToFingerprint(scratch, scratchLength);
+					addToFingerprint(fingerprintSeparator, 1);
+					long gradingId = parseGradingID(buffer, secondComma + 1, gradingIDEnd);
+					if (gradingId == NOT_AN_INTEGER)
+					{
+						log.error("nfe while parsing grading ID");
+						throw new AnonGradingCSVParseException("Grading ID is not an integer: " + decode(buffer, secondComma + 1, gradingIDEnd) + "; userEid: " + userEid + "; sectionEid: " + sectionEid);
+					}
+					if (gradingId < minGradingID || gradingId > maxGradingID)
+					{
+						throw outOfRange(decode(buffer, secondComma + 1, gradingIDEnd), userEid, sectionEid);
+					}
+					updateFingerprint((int) gradingId);
+					handler.handleRow(sectionEid, userEid, (int) gradingId, lineNumber);
+				}
+			}
+
+			//skip the line terminator (\n, \r, or \r\n)
+			position = lineEnd + 1;
+			if (lineEnd < limit && buffer.get(lineEnd) == CR && position < limit && buffer.get(position) == LF)
+			{
+				position++;
+			}
+		}
+
+		return linesRead;
+	}
+
+	/**
+	 * Validates a row that has been split into cells by the quote-aware path and hands it to the handler
+	 */
+	private void parseRow(String[] line, int lineNumber, RowHandler handler)
+	{
+		if (line.length == 1 && StringUtils.isBlank(line[0]))
+		{
+			//skip empty lines (they appear as having one empty string cell)
+			return;
+		}
+
+		if (line.length < 3)
+		{
+			throw new AnonGradingCSVParseException("CSV row is too short. Line #" + lineNumber);
+		}
+		String sectionEid = StringUtils.trimToEmpty(line[0]);
+		String userEid = StringUtils.trimToEmpty(line[1]);
+		int gradingId;
+		try
+		{
+			gradingId = Integer.parseInt(StringUtils.trimToEmpty(line[2]));
+		}
+		catch(NumberFormatException e)
+		{
+			log.error("nfe while parsing grading ID");
+			throw new AnonGradingCSVParseException("Grading ID is not an integer: " + line[2] + "; userEid: " + userEid + "; sectionEid: " + sectionEid);
+		}
+		if (gradingId < minGradingID || gradingId > maxGradingID)
+		{
+			throw outOfRange(line[2], userEid, sectionEid);
+		}
+		byte[] sectionEidBytes = sectionEid.getBytes(StandardCharsets.UTF_8);
+		addToFingerprint(sectionEidBytes, sectionEidBytes.length);
+		addToFingerprint(fingerprintSeparator, 1);
+		byte[] userEidBytes = userEid.getBytes(StandardCharsets.UTF_8);
+		addToFingerprint(userEidBytes, userEidBytes.length);
+		addToFingerprint(fingerprintSeparator, 1);
+		updateFingerprint(gradingId);
+		handler.handleRow(sectionEid, userEid, gradingId, lineNumber);
+	}
+
+	/**
+	 * Creates the exception thrown when a grading ID falls outside of the configured range
+	 * @param rawGradingId the grading ID cell as it appears in the file
+	 */
+	private AnonGradingCSVParseException outOfRange(String rawGradingId, String userEid, String sectionEid)
+	{
+		log.error("Grading ID out of range");
+		return new AnonGradingCSVParseException("Grading ID is not between the minimum (" + minGradingID + ") and the maximum (" + maxGradingID + "): " + rawGradingId + "; userEid: " + userEid + "; sectionEid: " + sectionEid);
+	}
+
+	/**
+	 * Parses an integer from buffer[from, to), ignoring surrounding whitespace. Accepts the same input as Integer.parseInt.
+	 * @return the integer, or NOT_AN_INTEGER if the bytes don't form one
+	 */
+	private static long parseGradingID(ByteBuffer buffer, int from, int to)
+	{
+		while (from < to && isTrimmable(buffer.get(from)))
+		{
+			from++;
+		}
+		while (to > from && isTrimmable(buffer.get(to - 1)))
+		{
+			to--;
+		}
+		if (from == to)
+		{
+			return NOT_AN_INTEGER;
+		}
+
+		boolean negative = false;
+		byte first = buffer.get(from);
+		if (first == '-' || first == '+')
+		{
+			negative = first == '-';
+			if (++from == to)
+			{
+				return NOT_AN_INTEGER;
+			}
+		}
+
+		long value = 0;
+		for (int i = from; i < to; i++)
+		{
+			int digit = buffer.get(i) - '0';
+			if (digit < 0 || digit > 9)
+			{
+				return NOT_AN_INTEGER;
+			}
+			value = value * 10 + digit;
+			if (value > (long) Integer.MAX_VALUE + 1)
+			{
+				return NOT_AN_INTEGER;
+			}
+		}
+
+		value = negative ? -value : value;
+		return value > Integer.MAX_VALUE ? NOT_AN_INTEGER : value;
+	}
+
+	/**
+	 * Decodes buffer[from, to) as UTF-8 after trimming the same characters as String.trim()
+	 */
+	private String decodeTrimmed(ByteBuffer buffer, int from, int to)
+	{
+		while (from < to && isTrimmable(buffer.get(from)))
+		{
+			from++;
+		}
+		while (to > from && isTrimmable(buffer.get(to - 1)))
+		{
+			to--;
+		}
+		return decode(buffer, from, to);
+	}
+
+	/**
+	 * Decodes buffer[from, to) as UTF-8
+	 */
+	private String decode(ByteBuffer buffer, int from, int to)
+	{
+		int length = to - from;
+		scratchLength = length;
+		if (length == 0)
+		{
+			return "";
+		}
+		if (scratch.length < length)
+		{
+			scratch = new byte[Math.max(length, scratch.length * 2)];
+		}
+		ByteBuffer source = buffer.duplicate();
+		source.position(from);
+		source.get(scratch, 0, length);
+		return new String(scratch, 0, length, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Adds the grading ID to the fingerprint and terminates the row
+	 */
+	private void updateFingerprint(int gradingId)
+	{
+		fingerprintGradingID[0] = (byte) (gradingId >>> 24);
+		fingerprintGradingID[1] = (byte) (gradingId >>> 16);
+		fingerprintGradingID[2] = (byte) (gradingId >>> 8);
+		fingerprintGradingID[3] = (byte) gradingId;
+		fingerprintGradingID[4] = '\n';
+		addToFingerprint(fingerprintGradingID, fingerprintGradingID.length);
+	}
+
+	/**
+	 * Adds bytes[0, length) to the fingerprint, or records them if this parser is parsing one range of a parallel parse
+	 */
+	private void addToFingerprint(byte[] bytes, int length)
+	{
+		if (fingerprintInput == null)
+		{
+			fingerprint.update(bytes, 0, length);
+			return;
+		}
+
+		if (fingerprintInputLength + length > fingerprintInput.length)
+		{
+			fingerprintInput = Arrays.copyOf(fingerprintInput, Math.max(fingerprintInputLength + length, fingerprintInput.length * 2));
+		}
+		System.arraycopy(bytes, 0, fingerprintInput, fingerprintInputLength, length);
+		fingerprintInputLength += length;
+	}
+
+	/**
+	 * @return the bytes as lower case hex, as fingerprints are written
+	 */
+	static String toHex(byte[] bytes)
+	{
+		StringBuilder sb = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes)
+		{
+			sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+		}
+		return sb.toString();
+	}
+
+	private static boolean isTrimmable(byte b)
+	{
+		//multi-byte UTF-8 sequences never contain bytes in this range, so this is equivalent to String.trim()
+		return b >= 0 && b <= ' ';
+	}
+
+	/**
+	 * @return the index of the last line break in buffer[0, limit), or -1 if there isn't one
+	 */
+	private static int lastLineBreak(ByteBuffer buffer, int limit)
+	{
+		for (int i = limit - 1; i >= 0; i--)
+		{
+			if (buffer.get(i) == LF)
+			{
+				return i;
+			}
+		}
+		for (int i = limit - 1; i >= 0; i--)
+		{
+			if (buffer.get(i) == CR)
+			{
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Splits a line containing quotes into cells the same way opencsv's CSVReader.parseLine did
+	 */
+	private static String[] splitQuotedLine(String line)
+	{
+		List<String> cells = new ArrayList<>();
+		StringBuilder sb = new StringBuilder();
+		boolean inQuotes = false;
+		for (int i = 0; i < line.length(); i++)
+		{
+			char c = line.charAt(i);
+			if (c == QUOTE)
+			{
+				if (inQuotes && line.length() > i + 1 && line.charAt(i + 1) == QUOTE)
+				{
+					//an escaped quote
+					sb.append(line.charAt(i + 1));
+					i++;
+				}
+				else
+				{
+					inQuotes = !inQuotes;
+					//an embedded quote in the middle of a cell is kept, ie. a,bc"d"ef,g
+					if (i > 2 && line.charAt(i - 1) != COMMA && line.length() > i + 1 && line.charAt(i + 1) != COMMA)
+					{
+						sb.append(c);
+					}
+				}
+			}
+			else if (c == COMMA && !inQuotes)
+			{
+				cells.add(sb.toString());
+				sb.setLength(0);
+			}
+			else
+			{
+				sb.append(c);
+			}
+		}
+		cells.add(sb.toString());
+		return cells.toArray(new String[0]);
+	}
+
+	/**
+	 * The rows of one range of a parallel parse, held until they can be handed over in file order
+	 */
+	private static final class ParsedRange implements RowHandler
+	{
+		private final List<String> eids = new ArrayList<>();
+		private int[] values = new int[64];
+		private int rowCount = 0;
+		private byte[] fingerprintInput;
+		private int fingerprintInputLength;
+		private AnonGradingCSVParseException exception = null;
+
+		@Override
+		public void handleRow(String sectionEid, String userEid, int gradingId, int lineNumber)
+		{
+			eids.add(sectionEid);
+			eids.add(userEid);
+			if (values.length < (rowCount + 1) * 2)
+			{
+				values = Arrays.copyOf(values, values.length * 2);
+			}
+			values[rowCount * 2] = gradingId;
+			values[rowCount * 2 + 1] = lineNumber;
+			rowCount++;
+		}
+
+		private void replay(RowHandler handler)
+		{
+			for (int i = 0; i < rowCount; i++)
+			{
+				handler.handleRow(eids.get(i * 2), eids.get(i * 2 + 1), values[i * 2], values[i * 2 + 1]);
+			}
+			if (exception != null)
+			{
+				throw exception;
+			}
+		}
+	}
+}
@@ -28,5 +28,5 @@ public class AnonGradingCSVRow
 {
 	@Getter @Setter private String sectionEid;
 	@Getter @Setter private String userEid;
-	@Getter @Setter private Integer gradingID;
+	@Getter @Setter private int gradingID;
 }
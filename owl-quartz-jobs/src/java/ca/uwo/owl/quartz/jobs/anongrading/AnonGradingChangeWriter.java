@@ -0,0 +1,23 @@
+package ca.uwo.owl.quartz.jobs.anongrading;
+
+import java.io.IOException;
+import java.util.Collection;
+
+import org.sakaiproject.service.gradebook.shared.owl.anongrading.OwlAnonGradingID;
+
+/**
+ * Receives the changes the sync has computed: AnonGradingBatchWriter writes them to the database, AnonGradingPlanReport reports them without touching it
+ */
+public interface AnonGradingChangeWriter
+{
+	/**
+	 * Applies the operation to all the given rows
+	 * @return the number of rows applied
+	 */
+	int apply(AnonGradingOperation operation, Collection<OwlAnonGradingID> rows) throws IOException;
+
+	/**
+	 * @return the number of rows applied for the operation across every call to apply
+	 */
+	int getTotal(AnonGradingOperation operation);
+}
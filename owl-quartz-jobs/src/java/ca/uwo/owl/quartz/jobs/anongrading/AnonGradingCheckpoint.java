@@ -0,0 +1,125 @@
+package ca.uwo.owl.quartz.jobs.anongrading;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Records the write-back progress of a batch in a properties file inside the batch processing folder.
+ *
+ * The file is rewritten (atomically) after every committed chunk, so it always reflects what has reached the database.
+ * If a run fails part way through writing, the batch is left in the processing location and the next run resumes it:
+ * the diff is recomputed against the database, which already contains every committed chunk, so only the remaining changes are applied.
+ */
+@Slf4j
+public class AnonGradingCheckpoint
+{
+	public static final String CHECKPOINT_FILE_NAME = "anon-grades-checkpoint.properties";
+
+	private static final String KEY_ATTEMPTS = "attempts";
+	private static final String KEY_CHUNKS_SUFFIX = ".chunks";
+	private static final String KEY_ROWS_SUFFIX = ".rows";
+
+	private final Path file;
+	private final Properties properties = new Properties();
+
+	private AnonGradingCheckpoint(Path file)
+	{
+		this.file = file;
+	}
+
+	/**
+	 * Loads the checkpoint for the given batch processing folder; if the batch has never reached the write stage, the checkpoint is empty
+	 */
+	public static AnonGradingCheckpoint load(File batchDir) throws IOException
+	{
+		AnonGradingCheckpoint checkpoint = new AnonGradingCheckpoint(new File(batchDir, CHECKPOINT_FILE_NAME).toPath());
+		if (Files.exists(checkpoint.file))
+		{
+			try (InputStream in = Files.newInputStream(checkpoint.file))
+			{
+				checkpoint.properties.load(in);
+			}
+		}
+		return checkpoint;
+	}
+
+	/**
+	 * @return the number of times the write stage has been started for this batch
+	 */
+	public synchronized int getAttempts()
+	{
+		return getInt(KEY_ATTEMPTS);
+	}
+
+	public synchronized int getCommittedChunks(AnonGradingOperation operation)
+	{
+		return getInt(operation.name().toLowerCase() + KEY_CHUNKS_SUFFIX);
+	}
+
+	public synchronized int getCommittedRows(AnonGradingOperation operation)
+	{
+		return getInt(operation.name().toLowerCase() + KEY_ROWS_SUFFIX);
+	}
+
+	/**
+	 * Marks the start of a write stage
+	 */
+	public synchronized void startAttempt() throws IOException
+	{
+		properties.setProperty(KEY_ATTEMPTS, String.valueOf(getAttempts() + 1));
+		save();
+	}
+
+	/**
+	 * Records a committed chunk
+	 * @param rows the number of rows the gradebook service reported as written
+	 */
+	public synchronized void recordChunk(AnonGradingOperation operation, int rows) throws IOException
+	{
+		String prefix = operation.name().toLowerCase();
+		properties.setProperty(prefix + KEY_CHUNKS_SUFFIX, String.valueOf(getCommittedChunks(operation) + 1));
+		properties.setProperty(prefix + KEY_ROWS_SUFFIX, String.valueOf(getCommittedRows(operation) + rows));
+		save();
+	}
+
+	@Override
+	public synchronized String toString()
+	{
+		StringBuilder sb = new StringBuilder();
+		for (AnonGradingOperation operation : AnonGradingOperation.values())
+		{
+			if (sb.length() > 0)
+			{
+				sb.append(", ");
+			}
+			sb.append(operation.name().toLowerCase()).append(": ").append(getCommittedChunks(operation)).append(" chunks / ").append(getCommittedRows(operation)).append(" rows");
+		}
+		return sb.toString();
+	}
+
+	private int getInt(String key)
+	{
+		return Integer.parseInt(properties.getProperty(key, "0"));
+	}
+
+	/**
+	 * Writes to a temporary file and moves it into place so a crash never leaves a half written checkpoint
+	 */
+	private void save() throws IOException
+	{
+		Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+		try (OutputStream out = Files.newOutputStream(tmp))
+		{
+			properties.store(out, "anonymous grading write-back progress");
+		}
+		Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+}
@@ -0,0 +1,236 @@
+package ca.uwo.owl.quartz.jobs.anongrading;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import lombok.extern.slf4j.Slf4j;
+
+import org.sakaiproject.service.gradebook.shared.GradebookService;
+import org.sakaiproject.service.gradebook.shared.owl.anongrading.OwlAnonGradingID;
+
+/**
+ * Loads the database rows on a background thread while the CSV is still being parsed, so the two slow, independent reads overlap.
+ *
+ * When fetching the whole table, the load starts straight away. When fetching by section, the parser reports each sectionEid as it first appears;
+ * the sectionEids are grouped into batches and handed to the fetch thread through a bounded queue, so each batch is fetched while the rest of the file is parsed.
+ * If the fetch thread falls behind, the queue fills and the parser waits for it.
+ *
+ * Once the CSV has been parsed (and its duplicates removed), getRows waits for the load to finish and returns the rows for the CSV's sections.
+ * The prefetch must be closed, which stops the fetch thread if the rows turn out not to be needed.
+ */
+@Slf4j
+public class AnonGradingDatabasePrefetch implements Closeable
+{
+	//the number of batches of sectionEids that can be waiting for the fetch thread
+	private static final int QUEUE_CAPACITY = 4;
+
+	//marks the end of the sectionEids
+	private static final Set<String> END_OF_SECTIONS = Collections.emptySet();
+
+	private final ExecutorService executor = newFetchExecutor();
+
+	private final Future<List<OwlAnonGradingID>> rows;
+
+	//fetching by section only
+	private final BlockingQueue<Set<String>> sectionBatches;
+	private final int batchSize;
+	private Set<String> currentBatch;
+	private boolean sectionsEnded = false;
+
+	/**
+	 * Starts loading the whole table
+	 */
+	private AnonGradingDatabasePrefetch(GradebookService gradebookService, AnonGradingRunMetrics metrics)
+	{
+		sectionBatches = null;
+		batchSize = 0;
+		rows = executor.submit(() ->
+		{
+			log.info("prefetching all anonymous grading IDs");
+			long phaseStart = System.nanoTime();
+			List<OwlAnonGradingID> owlAnonGradingIDs = gradebookService.getAnonGradingIds();
+			metrics.record(AnonGradingSyncPhase.DB_FETCH, phaseStart, owlAnonGradingIDs.size());
+			return owlAnonGradingIDs;
+		});
+	}
+
+	/**
+	 * Starts waiting for batches of sectionEids to load
+	 */
+	private AnonGradingDatabasePrefetch(GradebookService gradebookService, int batchSize, AnonGradingRunMetrics metrics)
+	{
+		sectionBatches = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+		this.batchSize = Math.max(1, batchSize);
+		currentBatch = new HashSet<>();
+		rows = executor.submit(() ->
+		{
+			List<OwlAnonGradingID> owlAnonGradingIDs = new ArrayList<>();
+			int sectionCount = 0;
+			for (Set<String> batch = sectionBatches.take(); batch != END_OF_SECTIONS; batch = sectionBatches.take())
+			{
+				long phaseStart = System.nanoTime();
+				List<OwlAnonGradingID> fetched = gradebookService.getAnonGradingIdsForSectionEids(batch);
+				metrics.record(AnonGradingSyncPhase.DB_FETCH, phaseStart, fetched.size());
+				owlAnonGradingIDs.addAll(fetched);
+				sectionCount += batch.size();
+			}
+			log.info("prefetched {} anonymous grading IDs for {} sections", owlAnonGradingIDs.size(), sectionCount);
+			return owlAnonGradingIDs;
+		});
+	}
+
+	/**
+	 * Starts loading the whole table in the background
+	 */
+	public static AnonGradingDatabasePrefetch fetchAll(GradebookService gradebookService, AnonGradingRunMetrics metrics)
+	{
+		return new AnonGradingDatabasePrefetch(gradebookService, metrics);
+	}
+
+	/**
+	 * Starts loading rows in the background by section, as the sections are reported with sectionFound
+	 * @param batchSize the number of sectionEids per database query
+	 */
+	public static AnonGradingDatabasePrefetch fetchBySection(GradebookService gradebookService, int batchSize, AnonGradingRunMetrics metrics)
+	{
+		return new AnonGradingDatabasePrefetch(gradebookService, batchSize, metrics);
+	}
+
+	/**
+	 * Reports a sectionEid seen in the CSV for the first time. Does nothing when fetching the whole table.
+	 * Blocks while the queue of batches waiting for the fetch thread is full.
+	 */
+	public void sectionFound(String sectionEid)
+	{
+		if (sectionBatches == null || sectionsEnded)
+		{
+			return;
+		}
+
+		currentBatch.add(sectionEid);
+		if (currentBatch.size() >= batchSize)
+		{
+			send(currentBatch);
+			currentBatch = new HashSet<>();
+		}
+	}
+
+	/**
+	 * @return the database rows to compare against the CSV, once they have been loaded.
+	 * When fetching by section, rows of sections that are no longer in csvRows (because their only CSV rows were duplicates) are left out,
+	 * so the result is exactly what fetching csvRows' sections after parsing would have returned
+	 * @param csvRows the CSV's rows after duplicate removal
+	 */
+	public List<OwlAnonGradingID> getRows(AnonGradingRowStore csvRows)
+	{
+		endOfSections();
+		long waitStart = System.currentTimeMillis();
+		List<OwlAnonGradingID> owlAnonGradingIDs = await(rows);
+		log.info("waited {} ms for the prefetched anonymous grading IDs", System.currentTimeMillis() - waitStart);
+
+		if (sectionBatches != null)
+		{
+			Set<String> sectionEids = csvRows.getSectionEids();
+			owlAnonGradingIDs.removeIf(gradingID -> !sectionEids.contains(gradingID.getSectionEid()));
+		}
+		return owlAnonGradingIDs;
+	}
+
+	/**
+	 * @return a single daemon thread to run database fetches on
+	 */
+	static ExecutorService newFetchExecutor()
+	{
+		return Executors.newSingleThreadExecutor(r ->
+		{
+			Thread thread = new Thread(r, "anon-grading-db-prefetch");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/**
+	 * Waits for a background fetch, rethrowing anything it threw
+	 */
+	static List<OwlAnonGradingID> await(Future<List<OwlAnonGradingID>> fetch)
+	{
+		try
+		{
+			return fetch.get();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while waiting for the anonymous grading IDs", e);
+		}
+		catch (ExecutionException e)
+		{
+			if (e.getCause() instanceof RuntimeException)
+			{
+				throw (RuntimeException) e.getCause();
+			}
+			throw new RuntimeException("Unable to fetch the anonymous grading IDs: " + e.getCause(), e.getCause());
+		}
+	}
+
+	/**
+	 * Stops the fetch thread if it is still running
+	 */
+	@Override
+	public void close()
+	{
+		executor.shutdownNow();
+	}
+
+	/**
+	 * Sends the last partial batch and tells the fetch thread there are no more
+	 */
+	private void endOfSections()
+	{
+		if (sectionBatches == null || sectionsEnded)
+		{
+			return;
+		}
+
+		if (!currentBatch.isEmpty())
+		{
+			send(currentBatch);
+		}
+		send(END_OF_SECTIONS);
+		sectionsEnded = true;
+	}
+
+	/**
+	 * Queues a batch for the fetch thread; gives up if the fetch thread has already stopped (its exception is rethrown by getRows)
+	 */
+	private void send(Set<String> batch)
+	{
+		try
+		{
+			while (!sectionBatches.offer(batch, 100, TimeUnit.MILLISECONDS))
+			{
+				if (rows.isDone())
+				{
+					sectionsEnded = true;
+					return;
+				}
+			}
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while queueing sections to fetch", e);
+		}
+	}
+}
@@ -0,0 +1,179 @@
+package ca.uwo.owl.quartz.jobs.anongrading;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import org.sakaiproject.service.gradebook.shared.owl.anongrading.OwlAnonGradingID;
+
+/**
+ * Computes the changes required to bring the OWL_ANON_GRADING_ID table in line with the CSV.
+ *
+ * Each database row is looked up once in the CSV's AnonGradingRowStore by (sectionEid, userEid) and claims the CSV row it matches;
+ * database rows that match nothing, or whose CSV row has already been claimed, need to be deleted. The CSV is then walked once:
+ * unclaimed rows are inserted and claimed rows are updated if their grading ID differs. No map of the database rows is built.
+ *
+ * When the CSV is already sorted (see AnonGradingExternalSort), computeSorted sorts the database rows the same way and merge joins the two sides instead.
+ */
+@Slf4j
+public class AnonGradingDiff
+{
+	private static final Comparator<OwlAnonGradingID> DB_ROW_ORDER = Comparator.comparing(OwlAnonGradingID::getSectionEid).thenComparing(OwlAnonGradingID::getUserEid);
+
+	//CSV rows that don't exist in the database
+	@Getter private final Set<OwlAnonGradingID> toInsert = new HashSet<>();
+
+	//database rows whose grading ID differs from the CSV
+	@Getter private final Set<OwlAnonGradingID> toUpdate = new HashSet<>();
+
+	//database rows that don't exist in the CSV
+	@Getter private final Set<OwlAnonGradingID> toDelete = new HashSet<>();
+
+	//rows that exist in both with the same grading ID
+	@Getter private int unchangedCount = 0;
+
+	private AnonGradingDiff()
+	{
+	}
+
+	/**
+	 * Computes the inserts, updates and deletes required to make the database match the CSV.
+	 * Note: the OwlAnonGradingIDs that need updating are modified in place to carry the CSV's grading ID.
+	 * @param csvRows the CSV rows; (sectionEid, userEid) pairs must be unique
+	 * @param dbRows the existing database rows
+	 */
+	public static AnonGradingDiff compute(AnonGradingRowStore csvRows, List<OwlAnonGradingID> dbRows)
+	{
+		AnonGradingDiff diff = new AnonGradingDiff();
+
+		//claimed[i] is the database row matching CSV row i
+		OwlAnonGradingID[] claimed = new OwlAnonGradingID[csvRows.size()];
+		for (OwlAnonGradingID dbRow : dbRows)
+		{
+			int row = csvRows.indexOf(dbRow.getSectionEid(), dbRow.getUserEid());
+			if (row < 0 || claimed[row] != null)
+			{
+				//not in the csv, or the database holds more than one row for this (sectionEid, userEid) pair; the others can never match the CSV
+				diff.toDelete.add(dbRow);
+			}
+			else
+			{
+				claimed[row] = dbRow;
+			}
+		}
+
+		for (int i = 0; i < claimed.length; i++)
+		{
+			if (claimed[i] == null)
+			{
+				diff.addInsert(csvRows.getRow(i));
+			}
+			else if (claimed[i].getAnonGradingID() != csvRows.getGradingID(i))
+			{
+				diff.addMatch(csvRows.getRow(i), claimed[i]);
+			}
+			else
+			{
+				diff.unchangedCount++;
+			}
+		}
+
+		log.info("Diff complete: {} to insert, {} to update, {} to delete, {} unchanged", new Object[] {diff.toInsert.size(), diff.toUpdate.size(), diff.toDelete.size(), diff.unchangedCount});
+		return diff;
+	}
+
+	/**
+	 * Computes the inserts, updates and deletes required to make the database match the CSV by merge joining the two in (sectionEid, userEid) order.
+	 * Note: the OwlAnonGradingIDs that need updating are modified in place to carry the CSV's grading ID.
+	 * @param sortedCsvRows the CSV rows in (sectionEid, userEid) order; (sectionEid, userEid) pairs must be unique
+	 * @param dbRows the existing database rows, in any order
+	 */
+	public static AnonGradingDiff computeSorted(List<AnonGradingCSVRow> sortedCsvRows, List<OwlAnonGradingID> dbRows)
+	{
+		AnonGradingDiff diff = new AnonGradingDiff();
+		List<OwlAnonGradingID> sortedDbRows = new ArrayList<>(dbRows);
+		sortedDbRows.sort(DB_ROW_ORDER);
+
+		int c = 0;
+		int d = 0;
+		while (c < sortedCsvRows.size() || d < sortedDbRows.size())
+		{
+			int order;
+			if (c == sortedCsvRows.size())
+			{
+				order = 1;
+			}
+			else if (d == sortedDbRows.size())
+			{
+				order = -1;
+			}
+			else
+			{
+				AnonGradingCSVRow csvRow = sortedCsvRows.get(c);
+				OwlAnonGradingID dbRow = sortedDbRows.get(d);
+				order = csvRow.getSectionEid().compareTo(dbRow.getSectionEid());
+				if (order == 0)
+				{
+					order = csvRow.getUserEid().compareTo(dbRow.getUserEid());
+				}
+			}
+
+			if (order < 0)
+			{
+				diff.addInsert(sortedCsvRows.get(c++));
+			}
+			else if (order > 0)
+			{
+				diff.toDelete.add(sortedDbRows.get(d++));
+			}
+			else
+			{
+				diff.addMatch(sortedCsvRows.get(c++), sortedDbRows.get(d++));
+				//any further database rows with the same key can never match the CSV
+				while (d < sortedDbRows.size() && DB_ROW_ORDER.compare(sortedDbRows.get(d - 1), sortedDbRows.get(d)) == 0)
+				{
+					diff.toDelete.add(sortedDbRows.get(d++));
+				}
+			}
+		}
+
+		log.info("Diff complete: {} to insert, {} to update, {} to delete, {} unchanged", new Object[] {diff.toInsert.size(), diff.toUpdate.size(), diff.toDelete.size(), diff.unchangedCount});
+		return diff;
+	}
+
+	/**
+	 * The row doesn't exist in the db, so it needs to be inserted
+	 */
+	private void addInsert(AnonGradingCSVRow csvRow)
+	{
+		log.info("will insert: {}", csvRow.toString());
+		OwlAnonGradingID current = new OwlAnonGradingID();
+		current.setSectionEid(csvRow.getSectionEid());
+		current.setUserEid(csvRow.getUserEid());
+		current.setAnonGradingID(csvRow.getGradingID());
+		toInsert.add(current);
+	}
+
+	/**
+	 * The row exists in both; if the gradingID doesn't match, it needs to be updated in the db
+	 */
+	private void addMatch(AnonGradingCSVRow csvRow, OwlAnonGradingID dbGradingID)
+	{
+		int csvGradingID = csvRow.getGradingID();
+		if (dbGradingID.getAnonGradingID() != csvGradingID)
+		{
+			log.info("will update: {}", csvRow.toString());
+			dbGradingID.setAnonGradingID(csvGradingID);
+			toUpdate.add(dbGradingID);
+		}
+		else
+		{
+			unchangedCount++;
+		}
+	}
+}
@@ -0,0 +1,108 @@
+package ca.uwo.owl.quartz.jobs.anongrading;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A hash index over an AnonGradingRowStore keyed on (sectionEid, userEid).
+ *
+ * The index is built in a single pass: every row is looked up by its packed key in a primitive hash map, and rows sharing a key are chained together by position.
+ * Duplicates are reported in the same order as the original pairwise scan: groups are ordered by the position of their first member,
+ * and the members of each group are listed in file order.
+ */
+public class AnonGradingDuplicateIndex
+{
+	//marks the end of a chain / a row without duplicates
+	private static final int NONE = -1;
+
+	private final AnonGradingRowStore csvRows;
+
+	//next[i] is the position of the next row sharing row i's key, or NONE
+	private final int[] next;
+
+	//duplicate[i] is true if row i shares its key with any other row
+	private final boolean[] duplicate;
+
+	private int duplicateCount = 0;
+
+	public AnonGradingDuplicateIndex(AnonGradingRowStore csvRows)
+	{
+		if (csvRows == null)
+		{
+			throw new IllegalArgumentException("csvRows cannot be null");
+		}
+
+		this.csvRows = csvRows;
+		int size = csvRows.size();
+		next = new int[size];
+		duplicate = new boolean[size];
+		Arrays.fill(next, NONE);
+
+		//maps each key to the position of the last row seen with that key (the tail of its chain)
+		LongIntHashMap tails = new LongIntHashMap(size);
+		for (int i = 0; i < size; i++)
+		{
+			int tail = tails.put(csvRows.getKey(i), i);
+			if (tail != LongIntHashMap.NO_VALUE)
+			{
+				next[tail] = i;
+				if (!duplicate[tail])
+				{
+					//first collision for this key; the head of the chain becomes a duplicate too
+					duplicate[tail] = true;
+					duplicateCount++;
+				}
+				duplicate[i] = true;
+				duplicateCount++;
+			}
+		}
+	}
+
+	/**
+	 * @return the number of rows that share their (sectionEid, userEid) pair with another row
+	 */
+	public int getDuplicateCount()
+	{
+		return duplicateCount;
+	}
+
+	/**
+	 * Streams every duplicate group to the report, without materialising the rows. Groups are ordered by the position of their first member; members are in file order
+	 */
+	public void reportDuplicates(AnonGradingDuplicateReport report) throws IOException
+	{
+		boolean[] visited = new boolean[next.length];
+		for (int i = 0; i < next.length && duplicateCount > 0; i++)
+		{
+			if (!duplicate[i] || visited[i])
+			{
+				continue;
+			}
+
+			report.startGroup();
+			for (int j = i; j != NONE; j = next[j])
+			{
+				visited[j] = true;
+				report.addRow(csvRows.getSectionEid(j), csvRows.getUserEid(j), csvRows.getGradingID(j), csvRows.getLineNumber(j));
+			}
+		}
+	}
+
+	/**
+	 * @return the rows whose (sectionEid, userEid) pair appears exactly once, in file order; the store itself if there are no duplicates
+	 */
+	public AnonGradingRowStore getUniqueRows()
+	{
+		if (duplicateCount == 0)
+		{
+			return csvRows;
+		}
+
+		boolean[] unique = new boolean[duplicate.length];
+		for (int i = 0; i < duplicate.length; i++)
+		{
+			unique[i] = !duplicate[i];
+		}
+		return csvRows.retainRows(unique);
+	}
+}
@@ -0,0 +1,138 @@
+package ca.uwo.owl.quartz.jobs.anongrading;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Streams the CSV's duplicate rows to a report file in the batch folder, one line per row, as the duplicate groups are found.
+ *
+ * Columns: group, sectionEid, userEid, gradingId, file, line. Rows sharing a (sectionEid, userEid) pair have the same group number.
+ * Lines are numbered as in the parser's error messages, counting from the first line after the header.
+ * They run on across a batch's files (as they do in AnonGradingRowStore and AnonGradingExternalSort); the report maps them back to each file's own line numbers.
+ * Only the count of duplicate rows per section is kept in memory, for the summary.
+ */
+public class AnonGradingDuplicateReport implements Closeable
+{
+	public static final String REPORT_FILE_NAME = "anon-grades-duplicates.csv";
+
+	private static final String HEADER = "group,sectionEid,userEid,gradingId,file,line";
+
+	private final File file;
+	private final Writer out;
+
+	//the batch's files in order, and the line count of the files before each one
+	private final List<AnonGradingCSVFileStats> csvFiles;
+	private final int[] lineOffsets;
+
+	private int rowCount = 0;
+	private int groupCount = 0;
+	private final Map<String, Integer> rowsBySection = new HashMap<>();
+
+	/**
+	 * Creates the report in the given folder
+	 * @param csvFiles the batch's files, in the order they were parsed
+	 */
+	public AnonGradingDuplicateReport(File dir, List<AnonGradingCSVFileStats> csvFiles) throws IOException
+	{
+		this.csvFiles = csvFiles;
+		lineOffsets = new int[csvFiles.size()];
+		for (int i = 1; i < lineOffsets.length; i++)
+		{
+			lineOffsets[i] = lineOffsets[i - 1] + csvFiles.get(i - 1).getLines();
+		}
+
+		file = new File(dir, REPORT_FILE_NAME);
+		out = new BufferedWriter(Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8), 1 << 16);
+		out.write(HEADER);
+		out.write('\n');
+	}
+
+	/**
+	 * Starts the next group of rows sharing a (sectionEid, userEid) pair
+	 */
+	public void startGroup()
+	{
+		groupCount++;
+	}
+
+	/**
+	 * Adds a row to the current group
+	 * @param lineNumber the row's line number, running on across the batch's files
+	 */
+	public void addRow(String sectionEid, String userEid, int gradingID, int lineNumber) throws IOException
+	{
+		//the last file starting before the line holds it
+		int fileIndex = lineOffsets.length - 1;
+		while (fileIndex > 0 && lineOffsets[fileIndex] >= lineNumber)
+		{
+			fileIndex--;
+		}
+
+		out.write(Integer.toString(groupCount));
+		out.write(',');
+		out.write(AnonGradingPlanReport.escape(sectionEid));
+		out.write(',');
+		out.write(AnonGradingPlanReport.escape(userEid));
+		out.write(',');
+		out.write(Integer.toString(gradingID));
+		out.write(',');
+		out.write(fileIndex < 0 ? "" : AnonGradingPlanReport.escape(csvFiles.get(fileIndex).getFileName()));
+		out.write(',');
+		out.write(Integer.toString(fileIndex < 0 ? lineNumber : lineNumber - lineOffsets[fileIndex]));
+		out.write('\n');
+
+		rowCount++;
+		rowsBySection.merge(sectionEid, 1, Integer::sum);
+	}
+
+	public int getRowCount()
+	{
+		return rowCount;
+	}
+
+	public int getGroupCount()
+	{
+		return groupCount;
+	}
+
+	public File getFile()
+	{
+		return file;
+	}
+
+	/**
+	 * @return the number of duplicate rows, groups and sections, followed by one line per section (most duplicates first) for at most maxSections sections
+	 */
+	public String summarize(int maxSections)
+	{
+		List<Map.Entry<String, Integer>> sections = new ArrayList<>(rowsBySection.entrySet());
+		sections.sort(Map.Entry.<String, Integer>comparingByValue().reversed().thenComparing(Map.Entry.comparingByKey()));
+
+		StringBuilder sb = new StringBuilder();
+		sb.append(rowCount).append(" duplicate rows in ").append(groupCount).append(" groups across ").append(sections.size()).append(" sections");
+		for (int i = 0; i < sections.size() && i < maxSections; i++)
+		{
+			sb.append('\n').append(sections.get(i).getKey()).append(": ").append(sections.get(i).getValue()).append(" rows");
+		}
+		if (sections.size() > maxSections)
+		{
+			sb.append("\n... and ").append(sections.size() - maxSections).append(" more sections");
+		}
+		return sb.toString();
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		out.close();
+	}
+}
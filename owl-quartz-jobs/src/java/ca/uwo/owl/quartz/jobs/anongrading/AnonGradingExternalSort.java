@@ -0,0 +1,390 @@
+package ca.uwo.owl.quartz.jobs.anongrading;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Sorts the anonymous grading CSV on disk so that files larger than the heap can be synced with bounded memory.
+ *
+ * Parsed rows are buffered up to the run size, sorted by (sectionEid, userEid, line number) and spilled to run files in the batch folder.
+ * The runs are then merged; since rows sharing a key are adjacent in the merged order, duplicates are detected in the same pass,
+ * and the unique rows are written to a single sorted file. That file is read back one chunk of sections at a time,
+ * so the database rows for those sections can be merge joined against it.
+ *
+ * Duplicates are spilled to their own file as they are found, and reported grouped by key (in key order) with the members of each group in file order.
+ */
+@Slf4j
+public class AnonGradingExternalSort
+{
+	private static final String RUN_FILE_PREFIX = "anon-grades-run-";
+	private static final String SORTED_FILE_NAME = "anon-grades-sorted.tmp";
+	private static final String DUPLICATES_FILE_NAME = "anon-grades-duplicates.tmp";
+
+	private static final Comparator<SortRecord> RECORD_ORDER = Comparator.comparing((SortRecord r) -> r.sectionEid).thenComparing(r -> r.userEid).thenComparingInt(r -> r.lineNumber);
+
+	private final File workDir;
+	private final int runSize;
+	private final List<File> runFiles = new ArrayList<>();
+	private final File sortedFile;
+	private final File duplicatesFile;
+
+	@Getter private int duplicateCount = 0;
+	@Getter private int uniqueRowCount = 0;
+
+	/**
+	 * Receives the rows of one chunk of sections
+	 */
+	public interface SectionChunkHandler
+	{
+		/**
+		 * @param sortedRows the chunk's rows in (sectionEid, userEid) order; (sectionEid, userEid) pairs are unique
+		 * @param sectionEids the sections in this chunk
+		 */
+		void handleChunk(List<AnonGradingCSVRow> sortedRows, Set<String> sectionEids) throws IOException;
+	}
+
+	/**
+	 * Feeds the parsed rows of one or more CSV files to the sort
+	 */
+	public interface RowSource
+	{
+		/**
+		 * Hands every row to the handler; line numbers must increase across the whole source, so rows sharing a key stay in source order
+		 */
+		void parse(AnonGradingCSVParser.RowHandler handler) throws IOException;
+	}
+
+	private AnonGradingExternalSort(File workDir, int runSize)
+	{
+		this.workDir = workDir;
+		this.runSize = Math.max(1, runSize);
+		this.sortedFile = new File(workDir, SORTED_FILE_NAME);
+		this.duplicatesFile = new File(workDir, DUPLICATES_FILE_NAME);
+	}
+
+	/**
+	 * Sorts the rows of a source, separating out duplicates
+	 * @param source parses the CSV file(s)
+	 * @param workDir the directory to write temporary files into
+	 * @param runSize the maximum number of rows held in memory while sorting
+	 */
+	public static AnonGradingExternalSort sort(RowSource source, File workDir, int runSize) throws IOException
+	{
+		AnonGradingExternalSort sort = new AnonGradingExternalSort(workDir, runSize);
+		try
+		{
+			List<SortRecord> buffer = new ArrayList<>();
+			source.parse((sectionEid, userEid, gradingId, lineNumber) ->
+			{
+				buffer.add(new SortRecord(sectionEid, userEid, gradingId, lineNumber));
+				if (buffer.size() >= sort.runSize)
+				{
+					sort.spill(buffer);
+				}
+			});
+			if (!buffer.isEmpty())
+			{
+				sort.spill(buffer);
+			}
+			log.info("Sorted CSV into {} runs of up to {} rows", sort.runFiles.size(), sort.runSize);
+
+			sort.mergeRuns();
+		}
+		catch (UncheckedIOException e)
+		{
+			sort.delete();
+			throw e.getCause();
+		}
+		catch (IOException | RuntimeException e)
+		{
+			sort.delete();
+			throw e;
+		}
+		finally
+		{
+			sort.deleteRuns();
+		}
+		return sort;
+	}
+
+	/**
+	 * Reads the unique rows back in order, handing them over one chunk of sections at a time
+	 * @param sectionsPerChunk the maximum number of sections per chunk
+	 */
+	public void forEachSectionChunk(int sectionsPerChunk, SectionChunkHandler handler) throws IOException
+	{
+		List<AnonGradingCSVRow> chunk = new ArrayList<>();
+		Set<String> sectionEids = new HashSet<>();
+		String currentSection = null;
+		try (RunReader reader = new RunReader(sortedFile, uniqueRowCount))
+		{
+			while (reader.current != null)
+			{
+				SortRecord record = reader.current;
+				if (!record.sectionEid.equals(currentSection))
+				{
+					//only break between sections, so each section is compared against the database in full
+					if (sectionEids.size() >= sectionsPerChunk)
+					{
+						handler.handleChunk(chunk, sectionEids);
+						chunk = new ArrayList<>();
+						sectionEids = new HashSet<>();
+					}
+					currentSection = record.sectionEid;
+					sectionEids.add(currentSection);
+				}
+				chunk.add(record.toRow());
+				reader.advance();
+			}
+		}
+		if (!chunk.isEmpty())
+		{
+			handler.handleChunk(chunk, sectionEids);
+		}
+	}
+
+	/**
+	 * Streams the duplicates to the report, one group per key
+	 */
+	public void reportDuplicates(AnonGradingDuplicateReport report) throws IOException
+	{
+		try (RunReader reader = new RunReader(duplicatesFile, duplicateCount))
+		{
+			SortRecord previous = null;
+			while (reader.current != null)
+			{
+				SortRecord record = reader.current;
+				if (previous == null || !previous.sameKey(record))
+				{
+					report.startGroup();
+				}
+				report.addRow(record.sectionEid, record.userEid, record.gradingId, record.lineNumber);
+				previous = record;
+				reader.advance();
+			}
+		}
+	}
+
+	/**
+	 * Removes the temporary files
+	 */
+	public void delete()
+	{
+		deleteRuns();
+		for (File file : new File[] {sortedFile, duplicatesFile})
+		{
+			if (file.exists() && !file.delete())
+			{
+				log.warn("Unable to delete {}", file);
+			}
+		}
+	}
+
+	/**
+	 * Sorts the buffered records and writes them out as a run
+	 */
+	private void spill(List<SortRecord> buffer)
+	{
+		buffer.sort(RECORD_ORDER);
+		File runFile = new File(workDir, RUN_FILE_PREFIX + runFiles.size() + ".tmp");
+		runFiles.add(runFile);
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(runFile))))
+		{
+			out.writeInt(buffer.size());
+			for (SortRecord record : buffer)
+			{
+				record.write(out);
+			}
+		}
+		catch (IOException e)
+		{
+			throw new UncheckedIOException("Unable to write " + runFile, e);
+		}
+		buffer.clear();
+	}
+
+	/**
+	 * Merges the runs into the sorted file; rows whose key appears more than once are diverted to the duplicates file
+	 */
+	private void mergeRuns() throws IOException
+	{
+		PriorityQueue<RunReader> queue = new PriorityQueue<>(Math.max(1, runFiles.size()), (a, b) -> RECORD_ORDER.compare(a.current, b.current));
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(sortedFile)));
+			DataOutputStream duplicatesOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(duplicatesFile))))
+		{
+			for (File runFile : runFiles)
+			{
+				RunReader reader = new RunReader(runFile);
+				if (reader.current == null)
+				{
+					reader.close();
+				}
+				else
+				{
+					queue.add(reader);
+				}
+			}
+
+			//the rows sharing the current key
+			List<SortRecord> group = new ArrayList<>();
+			while (!queue.isEmpty())
+			{
+				RunReader reader = queue.poll();
+				SortRecord record = reader.current;
+				if (!group.isEmpty() && !group.get(0).sameKey(record))
+				{
+					flushGroup(group, out, duplicatesOut);
+				}
+				group.add(record);
+
+				reader.advance();
+				if (reader.current == null)
+				{
+					reader.close();
+				}
+				else
+				{
+					queue.add(reader);
+				}
+			}
+			flushGroup(group, out, duplicatesOut);
+		}
+		finally
+		{
+			for (RunReader reader : queue)
+			{
+				reader.close();
+			}
+		}
+	}
+
+	private void flushGroup(List<SortRecord> group, DataOutputStream out, DataOutputStream duplicatesOut) throws IOException
+	{
+		if (group.size() == 1)
+		{
+			group.get(0).write(out);
+			uniqueRowCount++;
+		}
+		else
+		{
+			for (SortRecord duplicate : group)
+			{
+				duplicate.write(duplicatesOut);
+				duplicateCount++;
+			}
+		}
+		group.clear();
+	}
+
+	private void deleteRuns()
+	{
+		for (File runFile : runFiles)
+		{
+			if (runFile.exists() && !runFile.delete())
+			{
+				log.warn("Unable to delete {}", runFile);
+			}
+		}
+		runFiles.clear();
+	}
+
+	/**
+	 * A parsed row along with its line number, which keeps the sort stable with respect to file order
+	 */
+	private static final class SortRecord
+	{
+		private final String sectionEid;
+		private final String userEid;
+		private final int gradingId;
+		private final int lineNumber;
+
+		private SortRecord(String sectionEid, String userEid, int gradingId, int lineNumber)
+		{
+			this.sectionEid = sectionEid;
+			this.userEid = userEid;
+			this.gradingId = gradingId;
+			this.lineNumber = lineNumber;
+		}
+
+		private static SortRecord read(DataInputStream in) throws IOException
+		{
+			return new SortRecord(in.readUTF(), in.readUTF(), in.readInt(), in.readInt());
+		}
+
+		private void write(DataOutputStream out) throws IOException
+		{
+			out.writeUTF(sectionEid);
+			out.writeUTF(userEid);
+			out.writeInt(gradingId);
+			out.writeInt(lineNumber);
+		}
+
+		private boolean sameKey(SortRecord other)
+		{
+			return sectionEid.equals(other.sectionEid) && userEid.equals(other.userEid);
+		}
+
+		private AnonGradingCSVRow toRow()
+		{
+			return new AnonGradingCSVRow(sectionEid, userEid, gradingId);
+		}
+	}
+
+	/**
+	 * Reads the records of a run (or the sorted file) one at a time
+	 */
+	private static final class RunReader implements Closeable
+	{
+		private final DataInputStream in;
+		private int remaining;
+		private SortRecord current;
+
+		/**
+		 * Opens a run file, which starts with its record count
+		 */
+		private RunReader(File file) throws IOException
+		{
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			remaining = in.readInt();
+			advance();
+		}
+
+		/**
+		 * Opens a file containing the given number of records
+		 */
+		private RunReader(File file, int count) throws IOException
+		{
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			remaining = count;
+			advance();
+		}
+
+		private void advance() throws IOException
+		{
+			current = remaining-- > 0 ? SortRecord.read(in) : null;
+		}
+
+		@Override
+		public void close() throws IOException
+		{
+			in.close();
+		}
+	}
+}
@@ -0,0 +1,85 @@
+package ca.uwo.owl.quartz.jobs.anongrading;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+import org.sakaiproject.service.gradebook.shared.owl.anongrading.OwlAnonGradingID;
+
+/**
+ * Passes a sync's changes on to another writer (the database), keeping the rows each call applied so AnonGradingIDLookup can be patched once the run succeeds.
+ *
+ * At most maxRows rows are kept; past that the changes are dropped and the lookup is invalidated instead, since reloading the table is then cheaper than patching.
+ */
+public class AnonGradingIDChanges implements AnonGradingChangeWriter
+{
+	private final AnonGradingChangeWriter writer;
+	private final int maxRows;
+
+	private final Map<AnonGradingOperation, List<OwlAnonGradingID>> changes = new EnumMap<>(AnonGradingOperation.class);
+	private int size = 0;
+	private boolean overflowed = false;
+
+	public AnonGradingIDChanges(AnonGradingChangeWriter writer, int maxRows)
+	{
+		this.writer = writer;
+		this.maxRows = maxRows;
+		for (AnonGradingOperation operation : AnonGradingOperation.values())
+		{
+			changes.put(operation, new ArrayList<>());
+		}
+	}
+
+	@Override
+	public int apply(AnonGradingOperation operation, Collection<OwlAnonGradingID> rows) throws IOException
+	{
+		int applied = writer.apply(operation, rows);
+		size += rows.size();
+		if (!overflowed)
+		{
+			if (size > maxRows)
+			{
+				overflowed = true;
+				changes.values().forEach(List::clear);
+			}
+			else
+			{
+				changes.get(operation).addAll(rows);
+			}
+		}
+		return applied;
+	}
+
+	@Override
+	public int getTotal(AnonGradingOperation operation)
+	{
+		return writer.getTotal(operation);
+	}
+
+	/**
+	 * @return the rows applied for the operation, or an empty list if the changes overflowed
+	 */
+	public List<OwlAnonGradingID> getRows(AnonGradingOperation operation)
+	{
+		return changes.get(operation);
+	}
+
+	/**
+	 * @return true if more than maxRows rows were applied, so they weren't kept
+	 */
+	public boolean isOverflowed()
+	{
+		return overflowed;
+	}
+
+	/**
+	 * @return the number of rows applied across every operation
+	 */
+	public int getSize()
+	{
+		return size;
+	}
+}
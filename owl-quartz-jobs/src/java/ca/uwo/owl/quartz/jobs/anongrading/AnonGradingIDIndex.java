@@ -0,0 +1,174 @@
+package ca.uwo.owl.quartz.jobs.anongrading;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.sakaiproject.service.gradebook.shared.owl.anongrading.OwlAnonGradingID;
+
+/**
+ * An immutable snapshot of the OWL_ANON_GRADING_ID table, for AnonGradingIDLookup.
+ *
+ * The rows are held in an AnonGradingRowStore sorted by sectionEid, then userEid, so each section's rows are contiguous.
+ * A (sectionEid, userEid) lookup goes through the store's primitive hash index; a section lookup starts at the section's first row.
+ * Changes produce a new snapshot (see patch), so a reader never sees a run's changes half applied.
+ */
+final class AnonGradingIDIndex
+{
+	private static final Comparator<OwlAnonGradingID> ROW_ORDER = Comparator.comparing(OwlAnonGradingID::getSectionEid).thenComparing(OwlAnonGradingID::getUserEid);
+
+	private final AnonGradingRowStore rows;
+
+	//the position of each section's first row
+	private final Map<String, Integer> sectionStarts = new HashMap<>();
+
+	private final long loadTime;
+
+	/**
+	 * @param rows sorted by sectionEid, then userEid
+	 * @param loadTime when the rows were read from the database
+	 */
+	private AnonGradingIDIndex(AnonGradingRowStore rows, long loadTime)
+	{
+		this.rows = rows;
+		this.loadTime = loadTime;
+		for (int i = 0; i < rows.size(); i++)
+		{
+			sectionStarts.putIfAbsent(rows.getSectionEid(i), i);
+		}
+		rows.buildIndex();
+	}
+
+	/**
+	 * Indexes rows read from the database
+	 * @param loadTime when the rows were read
+	 */
+	static AnonGradingIDIndex build(Collection<OwlAnonGradingID> owlAnonGradingIDs, long loadTime)
+	{
+		List<OwlAnonGradingID> sorted = new ArrayList<>(owlAnonGradingIDs);
+		sorted.sort(ROW_ORDER);
+		AnonGradingRowStore rows = new AnonGradingRowStore();
+		for (OwlAnonGradingID owlAnonGradingID : sorted)
+		{
+			add(rows, owlAnonGradingID);
+		}
+		return new AnonGradingIDIndex(rows, loadTime);
+	}
+
+	/**
+	 * @return a new snapshot with the changes a sync wrote applied: rows with the changed keys are dropped, then updated and inserted rows are merged in.
+	 * The snapshot keeps this one's load time
+	 */
+	AnonGradingIDIndex patch(Collection<OwlAnonGradingID> deleted, Collection<OwlAnonGradingID> updated, Collection<OwlAnonGradingID> inserted)
+	{
+		boolean[] keep = new boolean[rows.size()];
+		Arrays.fill(keep, true);
+		drop(deleted, keep);
+		drop(updated, keep);
+		//an inserted row replaces any row with its key that this snapshot still has
+		drop(inserted, keep);
+
+		List<OwlAnonGradingID> added = new ArrayList<>(updated.size() + inserted.size());
+		added.addAll(updated);
+		added.addAll(inserted);
+		added.sort(ROW_ORDER);
+
+		//merge the kept rows (already in order) with the added ones
+		AnonGradingRowStore merged = new AnonGradingRowStore();
+		int next = 0;
+		for (int i = 0; i < rows.size(); i++)
+		{
+			if (!keep[i])
+			{
+				continue;
+			}
+			String sectionEid = rows.getSectionEid(i);
+			String userEid = rows.getUserEid(i);
+			for (; next < added.size() && compare(added.get(next), sectionEid, userEid) < 0; next++)
+			{
+				add(merged, added.get(next));
+			}
+			merged.add(sectionEid, userEid, rows.getGradingID(i));
+		}
+		for (; next < added.size(); next++)
+		{
+			add(merged, added.get(next));
+		}
+		return new AnonGradingIDIndex(merged, loadTime);
+	}
+
+	/**
+	 * @return the grading ID, or null if the user has none in the section
+	 */
+	Integer getAnonGradingID(String sectionEid, String userEid)
+	{
+		int row = rows.indexOf(sectionEid, userEid);
+		return row < 0 ? null : rows.getGradingID(row);
+	}
+
+	/**
+	 * @return the section's grading IDs by userEid, in userEid order; empty if the section has none
+	 */
+	Map<String, Integer> getAnonGradingIDs(String sectionEid)
+	{
+		Integer start = sectionStarts.get(sectionEid);
+		if (start == null)
+		{
+			return Collections.emptyMap();
+		}
+
+		Map<String, Integer> gradingIDs = new LinkedHashMap<>();
+		for (int i = start; i < rows.size() && rows.getSectionEid(i).equals(sectionEid); i++)
+		{
+			gradingIDs.put(rows.getUserEid(i), rows.getGradingID(i));
+		}
+		return gradingIDs;
+	}
+
+	int size()
+	{
+		return rows.size();
+	}
+
+	int getSectionCount()
+	{
+		return sectionStarts.size();
+	}
+
+	long getLoadTime()
+	{
+		return loadTime;
+	}
+
+	/**
+	 * Clears keep for the rows matching the given rows' keys
+	 */
+	private void drop(Collection<OwlAnonGradingID> removed, boolean[] keep)
+	{
+		for (OwlAnonGradingID owlAnonGradingID : removed)
+		{
+			int row = rows.indexOf(owlAnonGradingID.getSectionEid(), owlAnonGradingID.getUserEid());
+			if (row >= 0)
+			{
+				keep[row] = false;
+			}
+		}
+	}
+
+	private static int compare(OwlAnonGradingID owlAnonGradingID, String sectionEid, String userEid)
+	{
+		int result = owlAnonGradingID.getSectionEid().compareTo(sectionEid);
+		return result != 0 ? result : owlAnonGradingID.getUserEid().compareTo(userEid);
+	}
+
+	private static void add(AnonGradingRowStore rows, OwlAnonGradingID owlAnonGradingID)
+	{
+		rows.add(owlAnonGradingID.getSectionEid(), owlAnonGradingID.getUserEid(), owlAnonGradingID.getAnonGradingID());
+	}
+}
@@ -0,0 +1,276 @@
+package ca.uwo.owl.quartz.jobs.anongrading;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import lombok.extern.slf4j.Slf4j;
+
+import org.sakaiproject.component.cover.ServerConfigurationService;
+import org.sakaiproject.service.gradebook.shared.GradebookService;
+import org.sakaiproject.service.gradebook.shared.owl.anongrading.OwlAnonGradingID;
+
+/**
+ * Shared, read-side lookups of anonymous grading IDs, so callers don't each query the whole OWL_ANON_GRADING_ID table.
+ * Registered in components.xml as ca.uwo.owl.quartz.jobs.anongrading.AnonGradingIDLookup, for other tools to get from the ComponentManager; nothing in this project looks IDs up itself.
+ *
+ * The table is loaded once into a compact AnonGradingIDIndex and answered from memory. SyncAnonGradingIDs patches the index with the changes it wrote
+ * after each successful run (or invalidates it when the run was large or failed part way), so on this node the index follows the table without reloading it.
+ * Other nodes' syncs can't patch it, so each sync that writes also records a new database generation in the sync state in the (shared) processing location.
+ * At most every owlquartzjobs.anongrading.lookup.checkSeconds, a lookup reads the generation, and the index is reloaded if it was loaded or patched at a different one.
+ * As a backstop (ie. if the processing location isn't shared), the index is also reloaded once it is older than owlquartzjobs.anongrading.lookup.maxAgeMinutes.
+ *
+ * Only one thread loads at a time. While an expired index is being reloaded, other readers are answered from it rather than waiting.
+ */
+@Slf4j
+public class AnonGradingIDLookup
+{
+	private static final String PROP_MAX_AGE_MINUTES = "owlquartzjobs.anongrading.lookup.maxAgeMinutes";
+	private static final int MAX_AGE_MINUTES_DEFAULT = 10;
+
+	//how often the sync state is read for another node's changes; 0 reads it on every lookup
+	private static final String PROP_CHECK_SECONDS = "owlquartzjobs.anongrading.lookup.checkSeconds";
+	private static final int CHECK_SECONDS_DEFAULT = 10;
+
+	//changes are patched into the index up to this many rows per run; larger runs invalidate it
+	private static final String PROP_MAX_PATCH_ROWS = "owlquartzjobs.anongrading.lookup.maxPatchRows";
+	private static final int MAX_PATCH_ROWS_DEFAULT = 100000;
+
+	//0 never expires the index
+	private long maxAgeMillis;
+	private long checkMillis;
+	private int maxPatchRows;
+
+	//null until first use and after invalidate
+	private volatile AnonGradingIDIndex index = null;
+
+	//the database generation the index was loaded or last patched at, and the one last read from the sync state; null when none has been recorded
+	private volatile String indexDatabaseGeneration = null;
+	private volatile String databaseGeneration = null;
+	//when the sync state is next read
+	private final AtomicLong nextGenerationCheck = new AtomicLong();
+
+	//bumped by every patch and invalidate, so a load that overlapped one doesn't install rows read before the change
+	private long generation = 0;
+	private final Object generationLock = new Object();
+
+	private final ReentrantLock loadLock = new ReentrantLock();
+
+	private GradebookService gradebookService;
+	public void setGradebookService(GradebookService gradebookService)
+	{
+		this.gradebookService = gradebookService;
+	}
+
+	public void init()
+	{
+		log.info("init()");
+		maxAgeMillis = TimeUnit.MINUTES.toMillis(ServerConfigurationService.getInt(PROP_MAX_AGE_MINUTES, MAX_AGE_MINUTES_DEFAULT));
+		checkMillis = TimeUnit.SECONDS.toMillis(ServerConfigurationService.getInt(PROP_CHECK_SECONDS, CHECK_SECONDS_DEFAULT));
+		maxPatchRows = ServerConfigurationService.getInt(PROP_MAX_PATCH_ROWS, MAX_PATCH_ROWS_DEFAULT);
+	}
+
+	/**
+	 * @return the user's anonymous grading ID in the section, or null if they have none
+	 */
+	public Integer getAnonGradingID(String sectionEid, String userEid)
+	{
+		return getIndex().getAnonGradingID(sectionEid, userEid);
+	}
+
+	/**
+	 * @return the section's anonymous grading IDs keyed by userEid; empty if the section has none
+	 */
+	public Map<String, Integer> getAnonGradingIDs(String sectionEid)
+	{
+		return getIndex().getAnonGradingIDs(sectionEid);
+	}
+
+	/**
+	 * Drops the index; the next lookup reloads the table
+	 */
+	public void invalidate()
+	{
+		synchronized (generationLock)
+		{
+			generation++;
+			index = null;
+		}
+		log.info("Anonymous grading ID lookup invalidated");
+	}
+
+	/**
+	 * @return the number of rows changes may hold before a sync should invalidate the index rather than patch it
+	 */
+	int getMaxPatchRows()
+	{
+		return maxPatchRows;
+	}
+
+	/**
+	 * Applies the changes a successful sync wrote to the index, or invalidates it if the changes weren't all kept. If the index isn't loaded, there is nothing to patch
+	 * @param previousDatabaseGeneration the database generation before the sync wrote; if the index wasn't at it, another node's changes are missing, so it is invalidated
+	 * @param newDatabaseGeneration the database generation the sync recorded, or null if it couldn't be recorded (which invalidates the index)
+	 */
+	void patch(AnonGradingIDChanges changes, String previousDatabaseGeneration, String newDatabaseGeneration)
+	{
+		if (changes.isOverflowed())
+		{
+			log.info("{} anonymous grading ID changes is more than {}; invalidating the lookup rather than patching it", changes.getSize(), maxPatchRows);
+			invalidate();
+			return;
+		}
+
+		long start = System.currentTimeMillis();
+		AnonGradingIDIndex patched;
+		synchronized (generationLock)
+		{
+			generation++;
+			AnonGradingIDIndex current = index;
+			if (current == null)
+			{
+				return;
+			}
+			if (newDatabaseGeneration == null || !Objects.equals(indexDatabaseGeneration, previousDatabaseGeneration))
+			{
+				index = null;
+				log.info("The anonymous grading ID lookup wasn't at the database generation the sync started from; invalidated rather than patched");
+				return;
+			}
+			patched = current.patch(changes.getRows(AnonGradingOperation.DELETE), changes.getRows(AnonGradingOperation.UPDATE), changes.getRows(AnonGradingOperation.INSERT));
+			index = patched;
+			indexDatabaseGeneration = newDatabaseGeneration;
+			databaseGeneration = newDatabaseGeneration;
+		}
+		log.info("Patched the anonymous grading ID lookup with {} changes in {} ms; {} rows in {} sections", new Object[] {changes.getSize(),
+					System.currentTimeMillis() - start, patched.size(), patched.getSectionCount()});
+	}
+
+	/**
+	 * @return the current index, loading the table if there is none or it has expired
+	 */
+	private AnonGradingIDIndex getIndex()
+	{
+		AnonGradingIDIndex current = index;
+		if (current != null && !isExpired(current))
+		{
+			return current;
+		}
+
+		if (current != null)
+		{
+			//someone else is already reloading; answer from the expired index in the meantime
+			if (!loadLock.tryLock())
+			{
+				return current;
+			}
+		}
+		else
+		{
+			loadLock.lock();
+		}
+
+		try
+		{
+			current = index;
+			if (current == null || isExpired(current))
+			{
+				current = load();
+			}
+			return current;
+		}
+		finally
+		{
+			loadLock.unlock();
+		}
+	}
+
+	/**
+	 * Loads the whole table and installs it as the index, unless the index was patched or invalidated while loading
+	 * @return the loaded index
+	 */
+	private AnonGradingIDIndex load()
+	{
+		long loadGeneration;
+		synchronized (generationLock)
+		{
+			loadGeneration = generation;
+		}
+		//read before the table, so a sync that writes during the load leaves the index behind the next generation read, which reloads it
+		String loadDatabaseGeneration = readDatabaseGeneration();
+
+		long start = System.currentTimeMillis();
+		List<OwlAnonGradingID> owlAnonGradingIDs = gradebookService.getAnonGradingIds();
+		AnonGradingIDIndex loaded = AnonGradingIDIndex.build(owlAnonGradingIDs, start);
+		log.info("Loaded {} anonymous grading IDs in {} sections into the lookup in {} ms", new Object[] {loaded.size(), loaded.getSectionCount(), System.currentTimeMillis() - start});
+
+		synchronized (generationLock)
+		{
+			if (generation == loadGeneration)
+			{
+				index = loaded;
+				indexDatabaseGeneration = loadDatabaseGeneration;
+				databaseGeneration = loadDatabaseGeneration;
+			}
+			else
+			{
+				//the table changed while it was being read; answer this lookup from what was read, but keep whatever the patch or invalidate left
+				log.info("The anonymous grading IDs changed while loading the lookup; the loaded rows are not kept");
+			}
+		}
+		return loaded;
+	}
+
+	/**
+	 * @return true if the index is older than the maximum age, or another node's sync has written to the database since it was loaded or patched
+	 */
+	private boolean isExpired(AnonGradingIDIndex current)
+	{
+		checkDatabaseGeneration();
+		if (!Objects.equals(databaseGeneration, indexDatabaseGeneration))
+		{
+			return true;
+		}
+		return maxAgeMillis > 0 && System.currentTimeMillis() - current.getLoadTime() > maxAgeMillis;
+	}
+
+	/**
+	 * Reads the database generation from the sync state, if it hasn't been read in the last checkMillis; only one thread reads it at a time
+	 */
+	private void checkDatabaseGeneration()
+	{
+		long now = System.currentTimeMillis();
+		long next = nextGenerationCheck.get();
+		if (now < next || !nextGenerationCheck.compareAndSet(next, now + checkMillis))
+		{
+			return;
+		}
+
+		String read = readDatabaseGeneration();
+		if (!Objects.equals(read, databaseGeneration))
+		{
+			log.info("A sync has changed the anonymous grading IDs (database generation {}); reloading the lookup", read);
+		}
+		databaseGeneration = read;
+	}
+
+	/**
+	 * @return the database generation in the sync state; or if it can't be read, the last one read, leaving the maximum age to catch other nodes' changes
+	 */
+	private String readDatabaseGeneration()
+	{
+		try
+		{
+			return new AnonGradingCSVHandler().getDatabaseGeneration();
+		}
+		catch (IOException e)
+		{
+			log.warn("Unable to read the anonymous grading sync state; the lookup won't see other nodes' changes until it expires: {}", e.getMessage());
+			return databaseGeneration;
+		}
+	}
+}
@@ -0,0 +1,11 @@
+package ca.uwo.owl.quartz.jobs.anongrading;
+
+/**
+ * The kinds of changes the sync applies to the OWL_ANON_GRADING_ID table, in the order they are applied
+ */
+public enum AnonGradingOperation
+{
+	DELETE,
+	UPDATE,
+	INSERT
+}
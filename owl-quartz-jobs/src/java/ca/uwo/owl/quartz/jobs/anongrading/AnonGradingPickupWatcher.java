@@ -0,0 +1,213 @@
+package ca.uwo.owl.quartz.jobs.anongrading;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Watches the anonymous grading CSV pickup location and starts a sync as soon as a new CSV has been completely dropped off,
+ * rather than leaving it until the job's next scheduled run. The Quartz trigger stays in place as the fallback.
+ *
+ * A drop counts as complete once its marker file exists, if a marker file is configured; otherwise once the CSV files' count, sizes and modification times
+ * have stayed the same for the stable period. Bursts of events (a large file is written in many pieces) are debounced:
+ * each event only marks the CSV as pending, and readiness is re-checked on every poll.
+ * If the sync can't start because another run holds the lock, the CSV stays pending and is retried on the next poll.
+ */
+@Slf4j
+public class AnonGradingPickupWatcher
+{
+	//how often readiness is re-checked while a CSV is pending
+	private static final long POLL_MILLIS = TimeUnit.SECONDS.toMillis(5);
+
+	/**
+	 * Starts a sync
+	 */
+	public interface SyncTrigger
+	{
+		/**
+		 * @return false if the sync couldn't start because another run is in progress
+		 */
+		boolean trigger();
+	}
+
+	private final File pickupDir;
+	private final Predicate<String> isCSVFileName;
+	//null to wait for the CSV's size to settle instead
+	private final String markerFileName;
+	private final long stableMillis;
+	private final SyncTrigger syncTrigger;
+
+	private WatchService watchService;
+	private Thread thread;
+	private volatile boolean running = false;
+
+	//the CSV files' count, total size and latest modification time when readiness was last checked, and when they last changed
+	private int lastCount = -1;
+	private long lastSize = -1;
+	private long lastModified = -1;
+	private long lastChange = 0;
+
+	/**
+	 * @param isCSVFileName tells whether a file (by name) is one of the CSV files
+	 * @param markerFileName the file whose arrival marks the CSV as complete, or null to wait for the CSV files to stay the same for stableMillis
+	 */
+	public AnonGradingPickupWatcher(File pickupDir, Predicate<String> isCSVFileName, String markerFileName, long stableMillis, SyncTrigger syncTrigger)
+	{
+		this.pickupDir = pickupDir;
+		this.isCSVFileName = isCSVFileName;
+		this.markerFileName = markerFileName;
+		this.stableMillis = stableMillis;
+		this.syncTrigger = syncTrigger;
+	}
+
+	/**
+	 * Registers the watch and starts the watcher thread
+	 * @throws IOException if the pickup location can't be watched
+	 */
+	public synchronized void start() throws IOException
+	{
+		if (running)
+		{
+			return;
+		}
+
+		pickupDir.mkdirs();
+		watchService = FileSystems.getDefault().newWatchService();
+		pickupDir.toPath().register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+		running = true;
+		thread = new Thread(this::watch, "anon-grading-pickup-watcher");
+		thread.setDaemon(true);
+		thread.start();
+		log.info("Watching {} for CSVs{}", pickupDir, markerFileName == null ? "" : " (marker file " + markerFileName + ")");
+	}
+
+	/**
+	 * Stops the watcher thread, waiting for a sync it started to finish
+	 */
+	public synchronized void stop()
+	{
+		if (!running)
+		{
+			return;
+		}
+
+		running = false;
+		try
+		{
+			watchService.close();
+			thread.join();
+		}
+		catch (IOException e)
+		{
+			log.warn("Unable to close the watch on {}: {}", pickupDir, e.getMessage());
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void watch()
+	{
+		//a CSV may have been dropped off while the watcher wasn't running
+		boolean pending = listCSVFiles().length > 0;
+		while (running)
+		{
+			try
+			{
+				WatchKey key = watchService.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+				if (key != null)
+				{
+					for (WatchEvent<?> event : key.pollEvents())
+					{
+						//on overflow, events were lost, so check anyway
+						pending |= event.kind() == StandardWatchEventKinds.OVERFLOW || isRelevant((Path) event.context());
+					}
+					key.reset();
+				}
+
+				if (pending && isReady())
+				{
+					log.info("CSV is ready; starting a sync");
+					pending = !syncTrigger.trigger();
+					resetStability();
+				}
+			}
+			catch (ClosedWatchServiceException | InterruptedException e)
+			{
+				break;
+			}
+			catch (RuntimeException e)
+			{
+				//keep watching; the next drop (or the scheduled run) will try again
+				log.error("Pickup watcher error: {}", e.getMessage(), e);
+			}
+		}
+		log.info("Stopped watching {}", pickupDir);
+	}
+
+	private boolean isRelevant(Path name)
+	{
+		String fileName = name.toString();
+		return isCSVFileName.test(fileName) || fileName.equals(markerFileName);
+	}
+
+	/**
+	 * @return true if CSV files are in the pickup location and have been completely written
+	 */
+	private boolean isReady()
+	{
+		File[] csvFiles = listCSVFiles();
+		if (csvFiles.length == 0)
+		{
+			resetStability();
+			return false;
+		}
+
+		if (markerFileName != null)
+		{
+			return new File(pickupDir, markerFileName).exists();
+		}
+
+		long now = System.currentTimeMillis();
+		long size = 0;
+		long modified = 0;
+		for (File csv : csvFiles)
+		{
+			size += csv.length();
+			modified = Math.max(modified, csv.lastModified());
+		}
+		if (csvFiles.length != lastCount || size != lastSize || modified != lastModified)
+		{
+			lastCount = csvFiles.length;
+			lastSize = size;
+			lastModified = modified;
+			lastChange = now;
+			return false;
+		}
+		return now - lastChange >= stableMillis;
+	}
+
+	private File[] listCSVFiles()
+	{
+		File[] csvFiles = pickupDir.listFiles(file -> file.isFile() && isCSVFileName.test(file.getName()));
+		return csvFiles == null ? new File[0] : csvFiles;
+	}
+
+	private void resetStability()
+	{
+		lastCount = -1;
+		lastSize = -1;
+		lastModified = -1;
+	}
+}
@@ -0,0 +1,105 @@
+package ca.uwo.owl.quartz.jobs.anongrading;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.Map;
+
+import org.sakaiproject.service.gradebook.shared.owl.anongrading.OwlAnonGradingID;
+
+/**
+ * The changes a sync would make, written to a CSV report in the batch folder instead of the database (plan mode).
+ *
+ * Rows are appended to the report through a buffered writer as each operation is applied, so a large plan is never held in memory as a whole.
+ * Columns: operation, sectionEid, userEid, gradingId (for an update, the grading ID the row would be changed to).
+ */
+public class AnonGradingPlanReport implements AnonGradingChangeWriter, Closeable
+{
+	public static final String REPORT_FILE_NAME = "anon-grades-plan.csv";
+
+	private static final String HEADER = "operation,sectionEid,userEid,gradingId";
+
+	private final File file;
+	private final Writer out;
+
+	//rows reported per operation
+	private final Map<AnonGradingOperation, Integer> totals = new EnumMap<>(AnonGradingOperation.class);
+
+	/**
+	 * Creates the report in the given folder
+	 */
+	public AnonGradingPlanReport(File dir) throws IOException
+	{
+		file = new File(dir, REPORT_FILE_NAME);
+		out = new BufferedWriter(Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8), 1 << 16);
+		out.write(HEADER);
+		out.write('\n');
+	}
+
+	@Override
+	public int apply(AnonGradingOperation operation, Collection<OwlAnonGradingID> rows) throws IOException
+	{
+		String name = operation.name().toLowerCase();
+		for (OwlAnonGradingID row : rows)
+		{
+			out.write(name);
+			out.write(',');
+			out.write(escape(row.getSectionEid()));
+			out.write(',');
+			out.write(escape(row.getUserEid()));
+			out.write(',');
+			out.write(String.valueOf(row.getAnonGradingID()));
+			out.write('\n');
+		}
+		totals.merge(operation, rows.size(), Integer::sum);
+		return rows.size();
+	}
+
+	@Override
+	public int getTotal(AnonGradingOperation operation)
+	{
+		return totals.getOrDefault(operation, 0);
+	}
+
+	/**
+	 * @return the number of rows reported across every operation
+	 */
+	public int getSize()
+	{
+		int size = 0;
+		for (int total : totals.values())
+		{
+			size += total;
+		}
+		return size;
+	}
+
+	public File getFile()
+	{
+		return file;
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		out.close();
+	}
+
+	/**
+	 * Quotes a CSV value containing a comma, quote or line break
+	 */
+	static String escape(String value)
+	{
+		if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0 && value.indexOf('\r') < 0)
+		{
+			return value;
+		}
+		return '"' + value.replace("\"", "\"\"") + '"';
+	}
+}
@@ -0,0 +1,328 @@
+package ca.uwo.owl.quartz.jobs.anongrading;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * A compact, column oriented store of anonymous grading CSV rows.
+ *
+ * Each distinct sectionEid and userEid is kept once in a dictionary and given an int code; rows are then just parallel int columns
+ * (section code, user code, grading ID, and the row's line number in the source file). A (sectionEid, userEid) pair packs into a single long key, which is indexed with a primitive hash map,
+ * so looking up a row by its key allocates nothing. Rows are only materialised as AnonGradingCSVRows when they are needed for logging or writing.
+ *
+ * Stores derived from another store (see retainRows) share its dictionaries.
+ */
+public class AnonGradingRowStore
+{
+	private static final int INITIAL_CAPACITY = 1024;
+
+	private final Dictionary sections;
+	private final Dictionary users;
+
+	private int[] sectionCodes;
+	private int[] userCodes;
+	private int[] gradingIDs;
+	private int[] lineNumbers;
+	private int size = 0;
+
+	//maps each key to the position of its first row; built on first lookup
+	private LongIntHashMap index = null;
+
+	public AnonGradingRowStore()
+	{
+		this(new Dictionary(), new Dictionary(), INITIAL_CAPACITY);
+	}
+
+	private AnonGradingRowStore(Dictionary sections, Dictionary users, int capacity)
+	{
+		this.sections = sections;
+		this.users = users;
+		capacity = Math.max(1, capacity);
+		sectionCodes = new int[capacity];
+		userCodes = new int[capacity];
+		gradingIDs = new int[capacity];
+		lineNumbers = new int[capacity];
+	}
+
+	/**
+	 * Appends a row without a line number
+	 * @return true if this is the first row with this sectionEid
+	 */
+	public boolean add(String sectionEid, String userEid, int gradingID)
+	{
+		return add(sectionEid, userEid, gradingID, 0);
+	}
+
+	/**
+	 * Appends a row
+	 * @param lineNumber the row's line number in the source file
+	 * @return true if this is the first row with this sectionEid
+	 */
+	public boolean add(String sectionEid, String userEid, int gradingID, int lineNumber)
+	{
+		int sectionCount = sections.size();
+		append(sections.encode(sectionEid), users.encode(userEid), gradingID, lineNumber);
+		return sections.size() > sectionCount;
+	}
+
+	/**
+	 * Appends every row of another store, in order. Each of the other store's distinct EIDs is looked up in this store's dictionaries only once.
+	 * @param lineOffset added to each row's line number (ie. the line count of the files before the other store's file, so line numbers run on across files)
+	 * @param sectionListener receives each sectionEid that is new to this store
+	 */
+	public void addAll(AnonGradingRowStore other, int lineOffset, Consumer<String> sectionListener)
+	{
+		int[] sectionMap = new int[other.sections.size()];
+		int[] userMap = new int[other.users.size()];
+		Arrays.fill(sectionMap, Dictionary.NOT_FOUND);
+		Arrays.fill(userMap, Dictionary.NOT_FOUND);
+		for (int i = 0; i < other.size; i++)
+		{
+			int sectionCode = sectionMap[other.sectionCodes[i]];
+			if (sectionCode == Dictionary.NOT_FOUND)
+			{
+				String sectionEid = other.sections.decode(other.sectionCodes[i]);
+				int sectionCount = sections.size();
+				sectionCode = sections.encode(sectionEid);
+				sectionMap[other.sectionCodes[i]] = sectionCode;
+				if (sections.size() > sectionCount)
+				{
+					sectionListener.accept(sectionEid);
+				}
+			}
+
+			int userCode = userMap[other.userCodes[i]];
+			if (userCode == Dictionary.NOT_FOUND)
+			{
+				userCode = users.encode(other.users.decode(other.userCodes[i]));
+				userMap[other.userCodes[i]] = userCode;
+			}
+			append(sectionCode, userCode, other.gradingIDs[i], lineOffset + other.lineNumbers[i]);
+		}
+	}
+
+	public int size()
+	{
+		return size;
+	}
+
+	public String getSectionEid(int row)
+	{
+		return sections.decode(sectionCodes[row]);
+	}
+
+	public String getUserEid(int row)
+	{
+		return users.decode(userCodes[row]);
+	}
+
+	public int getGradingID(int row)
+	{
+		return gradingIDs[row];
+	}
+
+	/**
+	 * @return the row's line number in the source file, or 0 if it was added without one
+	 */
+	public int getLineNumber(int row)
+	{
+		return lineNumbers[row];
+	}
+
+	/**
+	 * @return the row's (section code, user code) pair packed into a long; rows with equal keys have equal EIDs
+	 */
+	public long getKey(int row)
+	{
+		return pack(sectionCodes[row], userCodes[row]);
+	}
+
+	/**
+	 * Materialises a row
+	 */
+	public AnonGradingCSVRow getRow(int row)
+	{
+		return new AnonGradingCSVRow(getSectionEid(row), getUserEid(row), gradingIDs[row]);
+	}
+
+	/**
+	 * Finds a row by its EIDs without adding anything to the dictionaries
+	 * @return the position of the first row with the given sectionEid and userEid, or -1 if there is none
+	 */
+	public int indexOf(String sectionEid, String userEid)
+	{
+		int sectionCode = sections.lookup(sectionEid);
+		int userCode = users.lookup(userEid);
+		if (sectionCode == Dictionary.NOT_FOUND || userCode == Dictionary.NOT_FOUND)
+		{
+			return -1;
+		}
+
+		buildIndex();
+		return index.get(pack(sectionCode, userCode));
+	}
+
+	/**
+	 * Builds the index used by indexOf now rather than on the first lookup, so a store that is no longer added to can be shared between threads
+	 * once it has been safely published
+	 */
+	public void buildIndex()
+	{
+		if (index == null)
+		{
+			index = new LongIntHashMap(size);
+			for (int i = 0; i < size; i++)
+			{
+				index.putIfAbsent(getKey(i), i);
+			}
+		}
+	}
+
+	/**
+	 * @return the distinct sectionEids of the rows in this store
+	 */
+	public Set<String> getSectionEids()
+	{
+		boolean[] present = new boolean[sections.size()];
+		Set<String> sectionEids = new HashSet<>();
+		for (int i = 0; i < size; i++)
+		{
+			int code = sectionCodes[i];
+			if (!present[code])
+			{
+				present[code] = true;
+				sectionEids.add(sections.decode(code));
+			}
+		}
+		return sectionEids;
+	}
+
+	/**
+	 * Creates a store of the rows for which keep is true, in order, sharing this store's dictionaries
+	 */
+	public AnonGradingRowStore retainRows(boolean[] keep)
+	{
+		int count = 0;
+		for (int i = 0; i < size; i++)
+		{
+			if (keep[i])
+			{
+				count++;
+			}
+		}
+
+		AnonGradingRowStore retained = new AnonGradingRowStore(sections, users, count);
+		for (int i = 0; i < size; i++)
+		{
+			if (keep[i])
+			{
+				retained.append(sectionCodes[i], userCodes[i], gradingIDs[i], lineNumbers[i]);
+			}
+		}
+		return retained;
+	}
+
+	/**
+	 * Creates a store of the rows in the given sections, in order, sharing this store's dictionaries
+	 */
+	public AnonGradingRowStore retainSections(Set<String> sectionEids)
+	{
+		boolean[] keepSection = new boolean[sections.size()];
+		for (String sectionEid : sectionEids)
+		{
+			int code = sections.lookup(sectionEid);
+			if (code != Dictionary.NOT_FOUND)
+			{
+				keepSection[code] = true;
+			}
+		}
+
+		boolean[] keep = new boolean[size];
+		for (int i = 0; i < size; i++)
+		{
+			keep[i] = keepSection[sectionCodes[i]];
+		}
+		return retainRows(keep);
+	}
+
+	/**
+	 * Materialises every row, in order
+	 */
+	public List<AnonGradingCSVRow> toRows()
+	{
+		List<AnonGradingCSVRow> rows = new ArrayList<>(size);
+		for (int i = 0; i < size; i++)
+		{
+			rows.add(getRow(i));
+		}
+		return rows;
+	}
+
+	private void append(int sectionCode, int userCode, int gradingID, int lineNumber)
+	{
+		if (size == gradingIDs.length)
+		{
+			int capacity = size + (size >> 1) + 1;
+			sectionCodes = Arrays.copyOf(sectionCodes, capacity);
+			userCodes = Arrays.copyOf(userCodes, capacity);
+			gradingIDs = Arrays.copyOf(gradingIDs, capacity);
+			lineNumbers = Arrays.copyOf(lineNumbers, capacity);
+		}
+		sectionCodes[size] = sectionCode;
+		userCodes[size] = userCode;
+		gradingIDs[size] = gradingID;
+		lineNumbers[size] = lineNumber;
+		size++;
+		index = null;
+	}
+
+	private static long pack(int sectionCode, int userCode)
+	{
+		return ((long) sectionCode << 32) | (userCode & 0xFFFFFFFFL);
+	}
+
+	/**
+	 * Assigns each distinct string a dense int code, starting at 0
+	 */
+	private static final class Dictionary
+	{
+		private static final int NOT_FOUND = -1;
+
+		private final Map<String, Integer> codes = new HashMap<>();
+		private final List<String> values = new ArrayList<>();
+
+		private int encode(String value)
+		{
+			Integer code = codes.get(value);
+			if (code == null)
+			{
+				code = values.size();
+				codes.put(value, code);
+				values.add(value);
+			}
+			return code;
+		}
+
+		private int lookup(String value)
+		{
+			Integer code = codes.get(value);
+			return code == null ? NOT_FOUND : code;
+		}
+
+		private String decode(int code)
+		{
+			return values.get(code);
+		}
+
+		private int size()
+		{
+			return values.size();
+		}
+	}
+}
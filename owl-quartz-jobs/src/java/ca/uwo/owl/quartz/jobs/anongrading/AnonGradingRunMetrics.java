@@ -0,0 +1,197 @@
+package ca.uwo.owl.quartz.jobs.anongrading;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Wall time and rows processed for each phase of a single SyncAnonGradingIDs run.
+ *
+ * A phase can be recorded more than once in a run (ie. when the CSV is compared a chunk of sections at a time); its times and row counts accumulate.
+ * The row count and parse time of each CSV file in the batch are kept too.
+ * The numbers are written to a properties file in the batch folder so they are archived with the CSV.
+ */
+public class AnonGradingRunMetrics
+{
+	public static final String SUMMARY_FILE_NAME = "anon-grades-metrics.properties";
+
+	public static final String OUTCOME_RUNNING = "running";
+	public static final String OUTCOME_SUCCESS = "success";
+	public static final String OUTCOME_UNCHANGED = "unchanged";
+	public static final String OUTCOME_RESUMABLE = "resumable";
+	public static final String OUTCOME_FAILED = "failed";
+	public static final String OUTCOME_PLANNED = "planned";
+
+	private static final AnonGradingSyncPhase[] PHASES = AnonGradingSyncPhase.values();
+
+	private final long startTime = System.currentTimeMillis();
+	private long endTime = 0;
+	private String outcome = OUTCOME_RUNNING;
+
+	private final boolean[] recorded = new boolean[PHASES.length];
+	private final long[] nanos = new long[PHASES.length];
+	private final long[] rows = new long[PHASES.length];
+
+	//each csv file parsed in the run, in file name order
+	private final List<AnonGradingCSVFileStats> files = new ArrayList<>();
+
+	/**
+	 * Adds the time since startNanos (a System.nanoTime() value) and the given row count to the phase
+	 */
+	public synchronized void record(AnonGradingSyncPhase phase, long startNanos, long rowCount)
+	{
+		int i = phase.ordinal();
+		recorded[i] = true;
+		nanos[i] += System.nanoTime() - startNanos;
+		rows[i] += rowCount;
+	}
+
+	/**
+	 * Records the stats of the csv files parsed in the run
+	 */
+	public synchronized void recordFiles(List<AnonGradingCSVFileStats> fileStats)
+	{
+		files.addAll(fileStats);
+	}
+
+	/**
+	 * @return one line per csv file parsed, ie. "anon-grades-law.csv: 25000 rows (750000 bytes) in 81 ms"
+	 */
+	public synchronized String[] describeFiles()
+	{
+		String[] lines = new String[files.size()];
+		for (int i = 0; i < lines.length; i++)
+		{
+			lines[i] = files.get(i).toString();
+		}
+		return lines;
+	}
+
+	/**
+	 * Marks the run as over
+	 * @param outcome one of the OUTCOME_ constants
+	 */
+	public synchronized void finish(String outcome)
+	{
+		this.outcome = outcome;
+		endTime = System.currentTimeMillis();
+	}
+
+	/**
+	 * @return true once finish has been called
+	 */
+	public synchronized boolean isFinished()
+	{
+		return endTime != 0;
+	}
+
+	public synchronized String getOutcome()
+	{
+		return outcome;
+	}
+
+	public long getStartTime()
+	{
+		return startTime;
+	}
+
+	public synchronized long getDurationMillis()
+	{
+		return (endTime == 0 ? System.currentTimeMillis() : endTime) - startTime;
+	}
+
+	public synchronized long getMillis(AnonGradingSyncPhase phase)
+	{
+		return TimeUnit.NANOSECONDS.toMillis(nanos[phase.ordinal()]);
+	}
+
+	public synchronized long getRows(AnonGradingSyncPhase phase)
+	{
+		return rows[phase.ordinal()];
+	}
+
+	public synchronized long getRowsPerSecond(AnonGradingSyncPhase phase)
+	{
+		int i = phase.ordinal();
+		return nanos[i] == 0 ? 0 : rows[i] * TimeUnit.SECONDS.toNanos(1) / nanos[i];
+	}
+
+	/**
+	 * @return one line per phase that was recorded, ie. "PARSE: 812 ms, 250000 rows, 307881 rows/s"
+	 */
+	public synchronized String[] describePhases()
+	{
+		List<String> lines = new ArrayList<>();
+		for (AnonGradingSyncPhase phase : PHASES)
+		{
+			if (recorded[phase.ordinal()])
+			{
+				lines.add(phase + ": " + getMillis(phase) + " ms, " + getRows(phase) + " rows, " + getRowsPerSecond(phase) + " rows/s");
+			}
+		}
+		return lines.toArray(new String[0]);
+	}
+
+	/**
+	 * Writes the metrics as a properties file into the given directory
+	 */
+	public void writeSummary(File dir) throws IOException
+	{
+		try (OutputStream out = Files.newOutputStream(new File(dir, SUMMARY_FILE_NAME).toPath()))
+		{
+			toProperties().store(out, "SyncAnonGradingIDs run metrics");
+		}
+	}
+
+	/**
+	 * @return the metrics as properties: startTime, endTime, durationMillis, outcome, phase.NAME.millis / .rows / .rowsPerSecond for each recorded phase,
+	 * and file.NAME.rows / .bytes / .millis for each csv file parsed
+	 */
+	public synchronized Properties toProperties()
+	{
+		Properties properties = new Properties();
+		properties.setProperty("startTime", Long.toString(startTime));
+		properties.setProperty("endTime", Long.toString(endTime));
+		properties.setProperty("durationMillis", Long.toString(getDurationMillis()));
+		properties.setProperty("outcome", outcome);
+		for (AnonGradingSyncPhase phase : PHASES)
+		{
+			if (recorded[phase.ordinal()])
+			{
+				String prefix = "phase." + phase + ".";
+				properties.setProperty(prefix + "millis", Long.toString(getMillis(phase)));
+				properties.setProperty(prefix + "rows", Long.toString(getRows(phase)));
+				properties.setProperty(prefix + "rowsPerSecond", Long.toString(getRowsPerSecond(phase)));
+			}
+		}
+		for (AnonGradingCSVFileStats file : files)
+		{
+			String prefix = "file." + file.getFileName() + ".";
+			properties.setProperty(prefix + "rows", Integer.toString(file.getRows()));
+			properties.setProperty(prefix + "bytes", Long.toString(file.getBytes()));
+			properties.setProperty(prefix + "millis", Long.toString(file.getMillis()));
+		}
+		return properties;
+	}
+
+	@Override
+	public synchronized String toString()
+	{
+		StringBuilder sb = new StringBuilder();
+		sb.append(new Date(startTime)).append(' ').append(outcome).append(" in ").append(getDurationMillis()).append(" ms");
+		for (AnonGradingSyncPhase phase : PHASES)
+		{
+			if (recorded[phase.ordinal()])
+			{
+				sb.append("; ").append(phase).append('=').append(getMillis(phase)).append("ms/").append(getRows(phase)).append(" rows");
+			}
+		}
+		return sb.toString();
+	}
+}
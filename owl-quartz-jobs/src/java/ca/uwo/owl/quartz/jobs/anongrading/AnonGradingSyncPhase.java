@@ -0,0 +1,17 @@
+package ca.uwo.owl.quartz.jobs.anongrading;
+
+/**
+ * The phases of a SyncAnonGradingIDs run that are timed separately, in the order they occur
+ */
+public enum AnonGradingSyncPhase
+{
+	MOVE_TO_PROCESSING,
+	PARSE,
+	DUPLICATE_DETECTION,
+	DB_FETCH,
+	DIFF,
+	DELETE,
+	UPDATE,
+	INSERT,
+	ARCHIVE
+}
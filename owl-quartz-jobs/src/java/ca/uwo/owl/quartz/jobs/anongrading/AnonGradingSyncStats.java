@@ -0,0 +1,141 @@
+package ca.uwo.owl.quartz.jobs.anongrading;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Deque;
+import java.util.List;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Keeps the metrics of the most recent SyncAnonGradingIDs runs and publishes them through JMX
+ */
+@Slf4j
+public class AnonGradingSyncStats implements AnonGradingSyncStatsMBean
+{
+	public static final String OBJECT_NAME = "ca.uwo.owl.quartz.jobs:type=SyncAnonGradingIDs";
+
+	private final int historySize;
+
+	//most recent first
+	private final Deque<AnonGradingRunMetrics> history = new ArrayDeque<>();
+
+	private ObjectName registeredName = null;
+
+	public AnonGradingSyncStats(int historySize)
+	{
+		this.historySize = Math.max(1, historySize);
+	}
+
+	/**
+	 * Adds a run to the history; it becomes the last run. The run's metrics can continue to be updated until it finishes
+	 */
+	public synchronized void add(AnonGradingRunMetrics metrics)
+	{
+		history.addFirst(metrics);
+		while (history.size() > historySize)
+		{
+			history.removeLast();
+		}
+	}
+
+	/**
+	 * Registers with the platform MBean server; failures are logged, as the job runs fine without JMX
+	 */
+	public synchronized void register()
+	{
+		try
+		{
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName(OBJECT_NAME);
+			if (server.isRegistered(name))
+			{
+				//left behind by a previous deployment
+				server.unregisterMBean(name);
+			}
+			server.registerMBean(this, name);
+			registeredName = name;
+		}
+		catch (JMException e)
+		{
+			log.warn("Unable to register {}: {}", OBJECT_NAME, e.getMessage());
+		}
+	}
+
+	public synchronized void unregister()
+	{
+		if (registeredName == null)
+		{
+			return;
+		}
+
+		try
+		{
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(registeredName);
+		}
+		catch (JMException e)
+		{
+			log.warn("Unable to unregister {}: {}", registeredName, e.getMessage());
+		}
+		registeredName = null;
+	}
+
+	@Override
+	public synchronized String getLastRunOutcome()
+	{
+		return history.isEmpty() ? null : history.peekFirst().getOutcome();
+	}
+
+	@Override
+	public synchronized String getLastRunStart()
+	{
+		return history.isEmpty() ? null : new Date(history.peekFirst().getStartTime()).toString();
+	}
+
+	@Override
+	public synchronized long getLastRunDurationMillis()
+	{
+		return history.isEmpty() ? 0 : history.peekFirst().getDurationMillis();
+	}
+
+	@Override
+	public synchronized String[] getLastRunPhases()
+	{
+		return history.isEmpty() ? new String[0] : history.peekFirst().describePhases();
+	}
+
+	@Override
+	public synchronized String[] getHistory()
+	{
+		List<String> lines = new ArrayList<>(history.size());
+		for (AnonGradingRunMetrics metrics : history)
+		{
+			lines.add(metrics.toString());
+		}
+		return lines.toArray(new String[0]);
+	}
+
+	@Override
+	public synchronized long getLastRunPhaseMillis(String phase)
+	{
+		return history.isEmpty() ? 0 : history.peekFirst().getMillis(AnonGradingSyncPhase.valueOf(phase));
+	}
+
+	@Override
+	public synchronized long getLastRunPhaseRows(String phase)
+	{
+		return history.isEmpty() ? 0 : history.peekFirst().getRows(AnonGradingSyncPhase.valueOf(phase));
+	}
+
+	@Override
+	public synchronized long getLastRunPhaseRowsPerSecond(String phase)
+	{
+		return history.isEmpty() ? 0 : history.peekFirst().getRowsPerSecond(AnonGradingSyncPhase.valueOf(phase));
+	}
+}
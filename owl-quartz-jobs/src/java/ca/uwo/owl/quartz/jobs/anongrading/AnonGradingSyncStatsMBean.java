@@ -0,0 +1,50 @@
+package ca.uwo.owl.quartz.jobs.anongrading;
+
+/**
+ * JMX view of the SyncAnonGradingIDs run metrics: the last run in detail, and a rolling history of recent runs
+ */
+public interface AnonGradingSyncStatsMBean
+{
+	/**
+	 * @return the outcome of the last run (running, success, unchanged, resumable or failed), or null if the job hasn't run
+	 */
+	String getLastRunOutcome();
+
+	/**
+	 * @return the start time of the last run, or null if the job hasn't run
+	 */
+	String getLastRunStart();
+
+	/**
+	 * @return the duration of the last run in milliseconds, or 0 if the job hasn't run
+	 */
+	long getLastRunDurationMillis();
+
+	/**
+	 * @return one line per phase of the last run with its wall time, rows processed and rows/s
+	 */
+	String[] getLastRunPhases();
+
+	/**
+	 * @return one line per recent run, most recent first
+	 */
+	String[] getHistory();
+
+	/**
+	 * @param phase an AnonGradingSyncPhase name, ie. PARSE
+	 * @return the wall time in milliseconds of the phase in the last run
+	 */
+	long getLastRunPhaseMillis(String phase);
+
+	/**
+	 * @param phase an AnonGradingSyncPhase name, ie. PARSE
+	 * @return the rows processed by the phase in the last run
+	 */
+	long getLastRunPhaseRows(String phase);
+
+	/**
+	 * @param phase an AnonGradingSyncPhase name, ie. PARSE
+	 * @return the throughput of the phase in the last run
+	 */
+	long getLastRunPhaseRowsPerSecond(String phase);
+}
@@ -0,0 +1,19 @@
+package ca.uwo.owl.quartz.jobs.anongrading;
+
+import java.util.List;
+
+/**
+ * Thrown when some partitions of a parallel write-back fail. The message lists every failed partition, so all of them reach the error email;
+ * the partitions' exceptions are attached as suppressed exceptions.
+ */
+public class AnonGradingWriteException extends RuntimeException
+{
+	public AnonGradingWriteException(String message, List<? extends Throwable> causes)
+	{
+		super(message, causes.isEmpty() ? null : causes.get(0));
+		for (int i = 1; i < causes.size(); i++)
+		{
+			addSuppressed(causes.get(i));
+		}
+	}
+}
@@ -0,0 +1,133 @@
+package ca.uwo.owl.quartz.jobs.anongrading;
+
+import java.util.Arrays;
+
+/**
+ * An open addressing hash map from long keys to non-negative int values, with no boxing and no per-entry objects.
+ * Used to index the AnonGradingRowStore on its packed (section code, user code) keys.
+ */
+final class LongIntHashMap
+{
+	//returned by get and put when the key is absent
+	static final int NO_VALUE = -1;
+
+	private static final float LOAD_FACTOR = 0.5f;
+
+	private long[] keys;
+	private int[] values;
+	private int mask;
+	private int size = 0;
+	private int resizeAt;
+
+	LongIntHashMap(int expectedSize)
+	{
+		int capacity = Integer.highestOneBit(Math.max(16, (int) (expectedSize / LOAD_FACTOR)) - 1) << 1;
+		allocate(capacity);
+	}
+
+	/**
+	 * @return the value mapped to key, or NO_VALUE
+	 */
+	int get(long key)
+	{
+		for (int slot = slot(key); ; slot = (slot + 1) & mask)
+		{
+			int value = values[slot];
+			if (value == NO_VALUE || keys[slot] == key)
+			{
+				return value;
+			}
+		}
+	}
+
+	/**
+	 * Maps key to value unless key is already mapped
+	 * @return the existing value, or NO_VALUE if value was added
+	 */
+	int putIfAbsent(long key, int value)
+	{
+		int slot = slot(key);
+		for (; values[slot] != NO_VALUE; slot = (slot + 1) & mask)
+		{
+			if (keys[slot] == key)
+			{
+				return values[slot];
+			}
+		}
+
+		keys[slot] = key;
+		values[slot] = value;
+		if (++size >= resizeAt)
+		{
+			rehash();
+		}
+		return NO_VALUE;
+	}
+
+	/**
+	 * Maps key to value, replacing any existing mapping
+	 * @return the previous value, or NO_VALUE
+	 */
+	int put(long key, int value)
+	{
+		int slot = slot(key);
+		for (; values[slot] != NO_VALUE; slot = (slot + 1) & mask)
+		{
+			if (keys[slot] == key)
+			{
+				int previous = values[slot];
+				values[slot] = value;
+				return previous;
+			}
+		}
+
+		keys[slot] = key;
+		values[slot] = value;
+		if (++size >= resizeAt)
+		{
+			rehash();
+		}
+		return NO_VALUE;
+	}
+
+	int size()
+	{
+		return size;
+	}
+
+	private int slot(long key)
+	{
+		//mix the bits so keys differing only in their high (section) half spread out
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32)) & mask;
+	}
+
+	private void allocate(int capacity)
+	{
+		keys = new long[capacity];
+		values = new int[capacity];
+		Arrays.fill(values, NO_VALUE);
+		mask = capacity - 1;
+		resizeAt = (int) (capacity * LOAD_FACTOR);
+	}
+
+	private void rehash()
+	{
+		long[] oldKeys = keys;
+		int[] oldValues = values;
+		allocate(oldKeys.length << 1);
+		for (int i = 0; i < oldKeys.length; i++)
+		{
+			if (oldValues[i] != NO_VALUE)
+			{
+				int slot = slot(oldKeys[i]);
+				while (values[slot] != NO_VALUE)
+				{
+					slot = (slot + 1) & mask;
+				}
+				keys[slot] = oldKeys[i];
+				values[slot] = oldValues[i];
+			}
+		}
+	}
+}
@@ -2,19 +2,30 @@ package ca.uwo.owl.quartz.jobs.anongrading;
 
 import ca.uwo.owl.quartz.jobs.EmailTemplateHelper;
 
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 
 import javax.mail.internet.AddressException;
 import javax.mail.internet.InternetAddress;
 import lombok.extern.slf4j.Slf4j;
 
+import org.apache.commons.lang3.StringUtils;
+
 import org.quartz.Job;
 import org.quartz.JobExecutionContext;
 import org.quartz.JobExecutionException;
@@ -47,12 +58,94 @@ public class SyncAnonGradingIDs implements Job
 	//Sakai property indicating whether or not to delete rows that are not found in the CSV (default is true)
 	private static final String PROP_DO_DELETIONS = "owlquartzjobs.anongrading.sync.doDeletions";
 
+	//Sakai property indicating which database rows are compared against the CSV: 'all' loads the whole table (default), 'sections' loads only the sections present in the CSV
+	private static final String PROP_FETCH_SCOPE = "owlquartzjobs.anongrading.sync.fetchScope";
+	private static final String FETCH_SCOPE_ALL = "all";
+	private static final String FETCH_SCOPE_SECTIONS = "sections";
+
+	//Sakai property specifying how many sectionEIDs are sent to the database per query when fetching by section (default is 1000, Oracle's IN-list limit)
+	private static final String PROP_FETCH_BATCH_SIZE = "owlquartzjobs.anongrading.sync.fetchBatchSize";
+	private static final int FETCH_BATCH_SIZE_DEFAULT = 1000;
+
+	//Sakai property indicating whether to skip the database entirely when the CSV's content is identical to the last successfully synced CSV (default is true)
+	private static final String PROP_SKIP_UNCHANGED = "owlquartzjobs.anongrading.sync.skipUnchanged";
+
+	//Sakai property indicating how the CSV is compared: 'full' compares it against the database (default), 'delta' compares it against the last successfully synced CSV
+	//and only fetches the sections that changed from the database
+	private static final String PROP_SYNC_MODE = "owlquartzjobs.anongrading.sync.mode";
+	private static final String SYNC_MODE_FULL = "full";
+	private static final String SYNC_MODE_DELTA = "delta";
+
+	//Sakai property specifying how many days can pass in delta mode before a full reconciliation against the database is done (default is 7)
+	private static final String PROP_FULL_RECONCILIATION_DAYS = "owlquartzjobs.anongrading.sync.fullReconciliationDays";
+	private static final int FULL_RECONCILIATION_DAYS_DEFAULT = 7;
+
+	//Sakai property specifying how many rows are written to the database per gradebook service call (default is 1000; 0 writes everything in one call)
+	private static final String PROP_WRITE_BATCH_SIZE = "owlquartzjobs.anongrading.sync.writeBatchSize";
+	private static final int WRITE_BATCH_SIZE_DEFAULT = 1000;
+
+	//Sakai property specifying how many threads write to the database at once; each operation's rows are partitioned by sectionEID and the partitions written concurrently (default is 1)
+	private static final String PROP_WRITE_PARALLELISM = "owlquartzjobs.anongrading.sync.writeParallelism";
+	private static final int WRITE_PARALLELISM_DEFAULT = 1;
+
+	//Sakai property specifying how many times a batch that fails while writing to the database is attempted before it is archived as failed (default is 3)
+	private static final String PROP_MAX_WRITE_ATTEMPTS = "owlquartzjobs.anongrading.sync.maxWriteAttempts";
+	private static final int MAX_WRITE_ATTEMPTS_DEFAULT = 3;
+
+	//Sakai property listing sectionEID prefixes (ie. term codes); if set, only rows in matching sections are ever deleted
+	private static final String PROP_DELETE_SECTION_PREFIXES = "owlquartzjobs.anongrading.sync.deleteScope.sectionPrefixes";
+
+	//Sakai property specifying the CSV size in megabytes above which the CSV is sorted on disk and compared against the database a chunk of sections at a time,
+	//rather than held in memory (default is 64; 0 never sorts on disk). Only applies in 'sections' fetch scope, since only the CSV's sections are compared
+	private static final String PROP_EXTERNAL_SORT_THRESHOLD_MB = "owlquartzjobs.anongrading.sync.externalSortThresholdMB";
+	private static final int EXTERNAL_SORT_THRESHOLD_MB_DEFAULT = 64;
+
+	//Sakai property specifying how many rows are sorted in memory at a time when sorting on disk (default is 100000)
+	private static final String PROP_EXTERNAL_SORT_RUN_SIZE = "owlquartzjobs.anongrading.sync.externalSortRunSize";
+	private static final int EXTERNAL_SORT_RUN_SIZE_DEFAULT = 100000;
+
+	//Sakai property indicating whether the database rows are loaded on a background thread while the CSV is parsed (and, when sorting on disk,
+	//whether each chunk's database rows are loaded while the previous chunk is written) (default is true)
+	private static final String PROP_PREFETCH = "owlquartzjobs.anongrading.sync.prefetch";
+
+	//Sakai property indicating whether the pickup location is watched, so a sync starts as soon as a CSV has been dropped off rather than on the next scheduled run (default is false)
+	private static final String PROP_WATCH = "owlquartzjobs.anongrading.sync.watch";
+
+	//Sakai property specifying how many seconds the CSV's size must stay the same before it is considered complete (default is 30)
+	private static final String PROP_WATCH_STABLE_SECONDS = "owlquartzjobs.anongrading.sync.watch.stableSeconds";
+	private static final int WATCH_STABLE_SECONDS_DEFAULT = 30;
+
+	//Sakai property indicating whether runs only plan (default is false): the CSV is parsed, deduplicated and diffed against the database as usual,
+	//but the changes are streamed to a report (anon-grades-plan.csv, in a plan folder in the processing location) instead of being written, and the CSV is left in the pickup location
+	private static final String PROP_PLAN = "owlquartzjobs.anongrading.sync.plan";
+	//job data map key selecting plan mode ("true") or a real sync ("false") for a trigger, overriding owlquartzjobs.anongrading.sync.plan
+	private static final String JOB_DATA_PLAN = "plan";
+
+	//Sakai property specifying how many runs' metrics are kept for JMX (default is 20)
+	private static final String PROP_METRICS_HISTORY_SIZE = "owlquartzjobs.anongrading.sync.metricsHistorySize";
+	private static final int METRICS_HISTORY_SIZE_DEFAULT = 20;
+
+	//the number of sections listed in the duplicates summary (the full list is in the duplicates report)
+	private static final int DUPLICATE_SUMMARY_SECTIONS = 20;
+
 	//from address
 	private static final String EMAIL_NO_REPLY_ADDRESS = "no-reply@uwo.ca";
 
 	//email recipients
 	private final List<InternetAddress> recipients = new ArrayList<>();
 
+	//per-phase metrics of recent runs, published through JMX
+	private AnonGradingSyncStats stats;
+
+	//held while a sync runs, so the scheduled run and the pickup watcher never sync at the same time
+	private final ReentrantLock runLock = new ReentrantLock();
+
+	//starts a sync when a CSV is dropped off; null unless watching is enabled
+	private AnonGradingPickupWatcher pickupWatcher;
+
+	//the external sort threshold last warned about for an oversized CSV in 'all' fetch scope, so the warning isn't repeated on every run; -1 if there hasn't been one
+	private long externalSortScopeWarnedMB = -1;
+
 	private GradebookService gradebookService;
 	public void setGradebookService(GradebookService gradebookService)
 	{
@@ -64,6 +157,13 @@ public class SyncAnonGradingIDs implements Job
 		return gradebookService;
 	}
 
+	//patched with the changes each successful run writes; optional
+	private AnonGradingIDLookup anonGradingIDLookup;
+	public void setAnonGradingIDLookup(AnonGradingIDLookup anonGradingIDLookup)
+	{
+		this.anonGradingIDLookup = anonGradingIDLookup;
+	}
+
 	public void init()
 	{
 		log.info("init()");
@@ -86,14 +186,148 @@ public class SyncAnonGradingIDs implements Job
 
 		EmailTemplateHelper.loadTemplate(ERROR_EMAIL_TEMPLATE_XML_FILE, ERROR_EMAIL_TEMPLATE_KEY);
 		EmailTemplateHelper.loadTemplate(DUPLICATE_EMAIL_TEMPLATE_XML_FILE, DUPLICATE_EMAIL_TEMPLATE_KEY);
+
+		stats = new AnonGradingSyncStats(ServerConfigurationService.getInt(PROP_METRICS_HISTORY_SIZE, METRICS_HISTORY_SIZE_DEFAULT));
+		stats.register();
+
+		if (ServerConfigurationService.getBoolean(PROP_WATCH, Boolean.FALSE))
+		{
+			startPickupWatcher();
+		}
+	}
+
+	public void destroy()
+	{
+		log.info("destroy()");
+		if (pickupWatcher != null)
+		{
+			pickupWatcher.stop();
+		}
+		if (stats != null)
+		{
+			stats.unregister();
+		}
 	}
 
 	@Override
 	public void execute( JobExecutionContext jobExecutionContext ) throws JobExecutionException
 	{
 		log.info("execute()");
+		runExclusively("the schedule", isPlanRequested(jobExecutionContext));
+	}
+
+	/**
+	 * @return true if the trigger's job data map, or failing that sakai.properties, asks for a plan rather than a sync
+	 */
+	private boolean isPlanRequested(JobExecutionContext jobExecutionContext)
+	{
+		Object plan = jobExecutionContext.getMergedJobDataMap().get(JOB_DATA_PLAN);
+		if (plan != null)
+		{
+			return Boolean.parseBoolean(plan.toString().trim());
+		}
+		return ServerConfigurationService.getBoolean(PROP_PLAN, Boolean.FALSE);
+	}
+
+	/**
+	 * Watches the pickup location; if it can't be watched, the job carries on with just its schedule
+	 */
+	private void startPickupWatcher()
+	{
+		AnonGradingCSVHandler csvHandler = new AnonGradingCSVHandler();
+		String markerFile = csvHandler.getWatchMarkerFileName();
+		long stableMillis = TimeUnit.SECONDS.toMillis(ServerConfigurationService.getInt(PROP_WATCH_STABLE_SECONDS, WATCH_STABLE_SECONDS_DEFAULT));
+		pickupWatcher = new AnonGradingPickupWatcher(csvHandler.getPickupDir(), csvHandler::isCSVFileName, markerFile, stableMillis, () ->
+		{
+			try
+			{
+				return runExclusively("the pickup watcher", ServerConfigurationService.getBoolean(PROP_PLAN, Boolean.FALSE));
+			}
+			catch (JobExecutionException e)
+			{
+				log.error("Sync started by the pickup watcher failed: {}", e.getMessage());
+				return true;
+			}
+		});
+
+		try
+		{
+			pickupWatcher.start();
+		}
+		catch (IOException e)
+		{
+			log.error("Unable to watch the pickup location; CSVs will only be picked up on schedule: {}", e.getMessage());
+			pickupWatcher = null;
+		}
+	}
+
+	/**
+	 * Syncs unless another sync is already running, in this JVM or (through a lock file in the processing location) on another node
+	 * @param trigger what started the sync, for the log
+	 * @param plan only report the changes rather than writing them
+	 * @return false if the sync was skipped because another one is running
+	 */
+	private boolean runExclusively(String trigger, boolean plan) throws JobExecutionException
+	{
+		if (!runLock.tryLock())
+		{
+			log.info("A sync is already running; skipping the sync started by {}", trigger);
+			return false;
+		}
+
+		try
+		{
+			Closeable processingLock;
+			try
+			{
+				processingLock = new AnonGradingCSVHandler().tryLockProcessingLocation();
+			}
+			catch (IOException e)
+			{
+				log.error("Unable to lock the processing location; skipping the sync started by {}: {}", trigger, e.getMessage());
+				return false;
+			}
+			if (processingLock == null)
+			{
+				log.info("Another node is syncing; skipping the sync started by {}", trigger);
+				return false;
+			}
+
+			try
+			{
+				log.info("{} started by {}", plan ? "Plan" : "Sync", trigger);
+				sync(plan);
+			}
+			finally
+			{
+				try
+				{
+					processingLock.close();
+				}
+				catch (IOException e)
+				{
+					log.warn("Unable to release the processing location lock: {}", e.getMessage());
+				}
+			}
+			return true;
+		}
+		finally
+		{
+			runLock.unlock();
+		}
+	}
 
+	/**
+	 * @param plan stream the changes to a report in a plan folder instead of writing them to the database; the CSV is copied rather than moved, and nothing is archived
+	 */
+	private void sync(boolean plan) throws JobExecutionException
+	{
 		long startTime = System.currentTimeMillis();
+		AnonGradingRunMetrics metrics = new AnonGradingRunMetrics();
+		if (stats != null)
+		{
+			stats.add(metrics);
+		}
 
 		AnonGradingCSVHandler csvHandler = new AnonGradingCSVHandler();
 
@@ -101,120 +335,222 @@ public class SyncAnonGradingIDs implements Job
 		boolean movedToProcessingDir = false;
 		// true when archiving the batch processing folder has been attempted
 		boolean archiveAttempted = false;
+		// tracks the chunks written to the database; set once the batch reaches the write stage
+		AnonGradingCheckpoint checkpoint = null;
+		// loads the database rows while the csv is parsed, when they're known to be needed
+		AnonGradingDatabasePrefetch prefetch = null;
 		try
 		{
 			//move the files to the processing directory (use the csvHandler)
-			log.info("Moving csv to processing directory");
-			csvHandler.moveToProcessingDir();
-			movedToProcessingDir = true;
+			long phaseStart = System.nanoTime();
+			if (plan)
+			{
+				log.info("Plan mode: copying csv to a plan directory; the database will not be changed");
+				csvHandler.copyToPlanDir();
+			}
+			else
+			{
+				log.info("Moving csv to processing directory");
+				csvHandler.moveToProcessingDir();
+				movedToProcessingDir = true;
+			}
+			metrics.record(AnonGradingSyncPhase.MOVE_TO_PROCESSING, phaseStart, 0);
+			if (csvHandler.isResumedBatch())
+			{
+				AnonGradingCheckpoint previous = AnonGradingCheckpoint.load(csvHandler.getProcessingDir());
+				log.info("Resuming after {} write attempt(s); previously committed {}. Remaining changes will be recomputed against the database.", previous.getAttempts(), previous);
+			}
+
+			//hashing the files needs no parse, so if they are byte for byte the ones last synced, the database can be left alone from the start.
+			//The files are only read the extra time when skipUnchanged is set; they are hashed even when this run can't skip (it's a resume, or follows unfinished writes), so the next run can
+			boolean hashFiles = !plan && ServerConfigurationService.getBoolean(PROP_SKIP_UNCHANGED, Boolean.TRUE);
+			boolean skipUnchanged = hashFiles && !csvHandler.isResumedBatch();
+			//a batch that failed or was abandoned part way through writing may have left the database matching neither it nor the last finished batch
+			String unfinishedWrites = plan ? null : csvHandler.getUnfinishedWrites();
+			if (skipUnchanged && unfinishedWrites != null)
+			{
+				log.info("Batch {} didn't finish writing to the database; comparing against the database even if the CSV is unchanged", unfinishedWrites);
+				skipUnchanged = false;
+			}
+			String fileFingerprint = hashFiles ? csvHandler.computeFileFingerprint() : null;
+			boolean filesUnchanged = skipUnchanged && fileFingerprint.equals(csvHandler.getLastFinishedFileFingerprint());
 
-			//parse the csv
-			List<AnonGradingCSVRow> csvRows = csvHandler.getAnonGradingCSVRows();
+			//parse the csv; large files are sorted on disk rather than held in memory
+			boolean externalSortMode = isExternalSortDue(csvHandler);
+			//a plan always compares against the database, so it shows exactly what a sync would change
+			boolean fullReconciliation = plan || externalSortMode || isFullReconciliationDue(csvHandler);
+			AnonGradingRowStore csvRows = null;
+			AnonGradingExternalSort externalSort = null;
+			AnonGradingDuplicateIndex duplicateIndex = null;
+			int duplicateCount;
+			phaseStart = System.nanoTime();
+			if (externalSortMode)
+			{
+				//duplicates are detected while merging the sorted runs, so they are timed as part of the parse
+				externalSort = csvHandler.sortAnonGradingCSVRows(ServerConfigurationService.getInt(PROP_EXTERNAL_SORT_RUN_SIZE, EXTERNAL_SORT_RUN_SIZE_DEFAULT));
+				duplicateCount = externalSort.getDuplicateCount();
+				metrics.record(AnonGradingSyncPhase.PARSE, phaseStart, externalSort.getUniqueRowCount() + duplicateCount);
+				metrics.recordFiles(csvHandler.getFileStats());
+			}
+			else
+			{
+				//a full reconciliation compares against the database, so its rows can be loaded while the csv is parsed;
+				//unless the files are the ones last synced, when the database will most likely be skipped.
+				//Only the fetch overlaps the parse: the csv isn't grouped by section, so the comparison waits for the whole feed
+				if (filesUnchanged)
+				{
+					log.info("CSV files are identical to the last successful sync; not prefetching");
+				}
+				if (fullReconciliation && !filesUnchanged && ServerConfigurationService.getBoolean(PROP_PREFETCH, Boolean.TRUE))
+				{
+					prefetch = startPrefetch(metrics);
+					csvRows = csvHandler.getAnonGradingCSVRows(prefetch::sectionFound);
+				}
+				else
+				{
+					csvRows = csvHandler.getAnonGradingCSVRows();
+				}
+				metrics.record(AnonGradingSyncPhase.PARSE, phaseStart, csvRows.size());
+				metrics.recordFiles(csvHandler.getFileStats());
 
-			List<AnonGradingCSVRow> duplicates = detectDuplicates(csvRows);
+				phaseStart = System.nanoTime();
+				duplicateIndex = new AnonGradingDuplicateIndex(csvRows);
+				duplicateCount = duplicateIndex.getDuplicateCount();
+				int parsedRows = csvRows.size();
+				if (duplicateCount > 0)
+				{
+					//remove all duplicates
+					csvRows = duplicateIndex.getUniqueRows();
+				}
+				metrics.record(AnonGradingSyncPhase.DUPLICATE_DETECTION, phaseStart, parsedRows);
+			}
 
-			if (!duplicates.isEmpty())
+			if (duplicateCount > 0)
 			{
-				log.warn("Duplicates found as follows:");
-				for (AnonGradingCSVRow duplicate : duplicates)
+				//the duplicates are streamed to a report in the batch folder rather than logged one by one
+				phaseStart = System.nanoTime();
+				try (AnonGradingDuplicateReport report = new AnonGradingDuplicateReport(csvHandler.getProcessingDir(), csvHandler.getFileStats()))
 				{
-					log.info(duplicate.toString());
+					if (externalSort != null)
+					{
+						externalSort.reportDuplicates(report);
+					}
+					else
+					{
+						duplicateIndex.reportDuplicates(report);
+					}
+					metrics.record(AnonGradingSyncPhase.DUPLICATE_DETECTION, phaseStart, 0);
+					log.warn("Duplicates found: {}; listed in {}", report.summarize(DUPLICATE_SUMMARY_SECTIONS), report.getFile());
+					if (!plan)
+					{
+						sendDuplicatesEmail(report, csvHandler.getProcessingDir());
+					}
 				}
-				log.info("-end of duplicates-");
-				sendDuplicatesEmail(duplicates);
 			}
 
-			//remove all duplicates
-			csvRows.removeAll(duplicates);
+			//if the content is identical to the last successful sync, the database already matches it
+			String fingerprint = csvHandler.getFingerprint();
+			csvHandler.saveFingerprint();
+			if (skipUnchanged && fingerprint.equals(csvHandler.getLastFinishedFingerprint()))
+			{
+				log.info("CSV is unchanged since the last successful sync (fingerprint {}); skipping the database", fingerprint);
+				archiveAttempted = true;
+				archive(csvHandler, true, metrics, AnonGradingRunMetrics.OUTCOME_UNCHANGED);
+				recordFinishedFileFingerprint(csvHandler, fileFingerprint);
+				log.info("Success. No changes. Took {} milliseconds.", System.currentTimeMillis() - startTime);
+				return;
+			}
 
 			/*
 				Get all the rows from the database with sectionEIDs that match the CSV.
 				For any matches rows with matching sectionEIDs and userEIDs, update the gradingIDs if they've changed.
-				Remove all matches from csvRows
 				Create the remainder of csvRows in the database
+				Delete any database rows that weren't matched
+				In delta mode, only the sections that changed since the last successful sync are compared
+				When sorted on disk, the CSV is compared and written a chunk of sections at a time
 			*/
-
-			//assemble a set of gradingIds from the csv
-			Set<String> csvSectionEIDs = getSectionEIDsFromCSVRows(csvRows);
-
-			List<OwlAnonGradingID> owlAnonGradingIDs = gradebookService.getAnonGradingIds();
-			// convert database rows to map<sectionEid, map<userEid, OwlAnonGradingID>>
-			Map<String, Map<String, OwlAnonGradingID>> dbSectionsToUsersToGrades = convertOwlAnonGradingIDsToMaps(owlAnonGradingIDs);
-
-			//Prepare a set of OwlAnonGradingIDs that need to be deleted. Start with the entire database table, and remove anything we find in the csv
-			Set<OwlAnonGradingID> toDelete = new HashSet<OwlAnonGradingID>(owlAnonGradingIDs);
-
-			//Prepare a set of OwlAnonGradingIDs that need to be updated. Start with nothing, and we'll populate them as we find discrepancies.
-			Set<OwlAnonGradingID> toUpdate = new HashSet<OwlAnonGradingID>();
-
-			//Prepare the list of new csv rows that need to be inserted into the database. Start with everything, and we'll remove all the matches we've found
-			List<AnonGradingCSVRow> newRows = new ArrayList<>();
-			newRows.addAll(csvRows);
-
-			/*
-				Iterate over the csv rows and find what needs to be updated.
-				Remove entries from newRows as we discover that they do not need to be inserted into the db
-			*/
-			for (AnonGradingCSVRow csvRow : csvRows)
+			AnonGradingDiff diff = null;
+			if (!fullReconciliation)
 			{
-				String csvSectionEid = csvRow.getSectionEid();
-				String csvUserEid = csvRow.getUserEid();
-				Integer csvGradingID = csvRow.getGradingID();
-
-				//find if the db has a row matching the csvRow's sectionEid and userEid
-				Map<String, OwlAnonGradingID> dbUserToGradingIDs = dbSectionsToUsersToGrades.get(csvSectionEid);
-				if (dbUserToGradingIDs != null)
-				{
-					OwlAnonGradingID dbGradingID = dbUserToGradingIDs.get(csvUserEid);
-					if (dbGradingID != null)
-					{
-						// the row exists in the csv, so we don't need to delete it
-						toDelete.remove(dbGradingID);
-
-						// the row exists in the db, so we don't need to insert it
-						newRows.remove(csvRow);
-
-						//if the gradingID doesn't match, it needs to be updated in the db
-						if (!dbGradingID.getAnonGradingID().equals(csvGradingID))
-						{
-							log.info("will update: {}", csvRow.toString());
-							dbGradingID.setAnonGradingID(csvGradingID);
-							toUpdate.add(dbGradingID);
-						}
-					}
-				}
+				diff = computeDeltaDiff(csvHandler, csvRows, metrics);
+				fullReconciliation = diff == null;
 			}
-
-			Boolean doDelete = ServerConfigurationService.getBoolean(PROP_DO_DELETIONS, Boolean.TRUE);
-			int numDeleted = 0;
-			if (doDelete)
+			if (fullReconciliation && !externalSortMode)
 			{
-				log.info("deleting");
-				numDeleted = gradebookService.deleteAnonGradingIds(toDelete);
+				List<OwlAnonGradingID> owlAnonGradingIDs = prefetch != null ? prefetch.getRows(csvRows) : getExistingAnonGradingIDs(csvRows, metrics);
+				phaseStart = System.nanoTime();
+				diff = AnonGradingDiff.compute(csvRows, owlAnonGradingIDs);
+				metrics.record(AnonGradingSyncPhase.DIFF, phaseStart, csvRows.size() + owlAnonGradingIDs.size());
 			}
 
-			log.info("updating");
-			int numUpdated = gradebookService.updateAnonGradingIds(toUpdate);
+			if (plan)
+			{
+				writePlan(csvHandler, externalSort, diff, metrics);
+				log.info("Plan complete. Took {} milliseconds.", System.currentTimeMillis() - startTime);
+				return;
+			}
 
-			Set<OwlAnonGradingID> toInsert = new HashSet<OwlAnonGradingID>();
-			// All the csvRows with unique (sectionEid, userEid) pairs need to be updated
-			for (AnonGradingCSVRow csvRow : newRows)
+			//write the changes in chunks, recording each committed chunk so an interrupted batch can be resumed
+			AnonGradingCheckpoint batchCheckpoint = AnonGradingCheckpoint.load(csvHandler.getProcessingDir());
+			batchCheckpoint.startAttempt();
+			String previousDatabaseGeneration = csvHandler.getDatabaseGeneration();
+			csvHandler.markForResume();
+			checkpoint = batchCheckpoint;
+			int writeBatchSize = ServerConfigurationService.getInt(PROP_WRITE_BATCH_SIZE, WRITE_BATCH_SIZE_DEFAULT);
+			int writeParallelism = ServerConfigurationService.getInt(PROP_WRITE_PARALLELISM, WRITE_PARALLELISM_DEFAULT);
+			AnonGradingChangeWriter writer = new AnonGradingBatchWriter(gradebookService, checkpoint, writeBatchSize, writeParallelism);
+			//keep the rows written, to patch the lookup with
+			AnonGradingIDChanges changes = null;
+			if (anonGradingIDLookup != null)
 			{
-				log.info("will insert: {}", csvRow.toString());
-				OwlAnonGradingID current = new OwlAnonGradingID();
-				current.setSectionEid(csvRow.getSectionEid());
-				current.setUserEid(csvRow.getUserEid());
-				current.setAnonGradingID(csvRow.getGradingID());
-				toInsert.add(current);
+				changes = new AnonGradingIDChanges(writer, anonGradingIDLookup.getMaxPatchRows());
+				writer = changes;
 			}
 
-			log.info("inserting");
-			int numInserted = gradebookService.createAnonGradingIds(toInsert);
+			if (externalSortMode)
+			{
+				syncSortedCSV(externalSort, writer, metrics);
+			}
+			else
+			{
+				applyDiff(diff, writer, metrics);
+			}
+			int numDeleted = writer.getTotal(AnonGradingOperation.DELETE);
+			int numUpdated = writer.getTotal(AnonGradingOperation.UPDATE);
+			int numInserted = writer.getTotal(AnonGradingOperation.INSERT);
+			if (numDeleted + numUpdated + numInserted > 0)
+			{
+				String databaseGeneration = recordDatabaseChanged(csvHandler);
+				if (changes != null)
+				{
+					anonGradingIDLookup.patch(changes, previousDatabaseGeneration, databaseGeneration);
+				}
+			}
 
 			// archive the file (use the csvHandler)
 			log.info("archiving");
 			archiveAttempted = true;
-			csvHandler.archiveCSV(true);
+			archive(csvHandler, true, metrics, AnonGradingRunMetrics.OUTCOME_SUCCESS);
+			recordFinishedFileFingerprint(csvHandler, fileFingerprint);
+			try
+			{
+				csvHandler.recordWritesFinished();
+			}
+			catch (IOException e)
+			{
+				log.warn("Unable to record that the batch finished writing; the next run will compare against the database in full: {}", e.getMessage());
+			}
+			if (fullReconciliation)
+			{
+				try
+				{
+					csvHandler.recordFullReconciliation();
+				}
+				catch (IOException e)
+				{
+					log.warn("Unable to record the full reconciliation; the next delta run will do a full reconciliation: {}", e.getMessage());
+				}
+			}
 
 			long timeElapsed = System.currentTimeMillis() - startTime;
 
@@ -224,6 +560,29 @@ public class SyncAnonGradingIDs implements Job
 		{
 			log.error("Exception was thrown: {}", exception.getMessage());
 
+			//some of the changes may have been written, so the lookup can't be patched
+			if (checkpoint != null)
+			{
+				recordDatabaseChanged(csvHandler);
+				if (anonGradingIDLookup != null)
+				{
+					anonGradingIDLookup.invalidate();
+				}
+			}
+
+			// If the failure happened while writing, leave the batch in the processing directory so the next run resumes it (up to the maximum number of attempts)
+			int maxWriteAttempts = ServerConfigurationService.getInt(PROP_MAX_WRITE_ATTEMPTS, MAX_WRITE_ATTEMPTS_DEFAULT);
+			boolean resumable = checkpoint != null && !archiveAttempted && checkpoint.getAttempts() < maxWriteAttempts;
+			if (resumable)
+			{
+				csvHandler.deleteSortFiles();
+				finishRun(metrics, AnonGradingRunMetrics.OUTCOME_RESUMABLE, csvHandler.getProcessingDir());
+				log.info("Leaving batch {} to be resumed; committed so far: {}", csvHandler.getProcessingDir(), checkpoint);
+				sendErrorEmail(exception.getMessage() + "\n\nThe failure occurred while writing to the database after committing " + checkpoint
+								+ ". The batch will be resumed on the next run (attempt " + checkpoint.getAttempts() + " of " + maxWriteAttempts + ").");
+				return;
+			}
+
 			// Archive the file
 			// Do this only if the file is in the processing directory and we haven't already attempted to archive
 			if (movedToProcessingDir && !archiveAttempted)
@@ -232,7 +591,7 @@ public class SyncAnonGradingIDs implements Job
 				try
 				{
 					// pass in false as there was an error
-					csvHandler.archiveCSV(false);
+					archive(csvHandler, false, metrics, AnonGradingRunMetrics.OUTCOME_FAILED);
 					log.info("archiving successful");
 				}
 				catch (Exception archiveException)
@@ -240,125 +599,406 @@ public class SyncAnonGradingIDs implements Job
 					log.error("Archiving failed, exception is: {}", archiveException.getMessage());
 				}
 			}
+			if (plan)
+			{
+				//the plan folder stays in the processing location either way
+				csvHandler.deleteSortFiles();
+				prunePlans(csvHandler);
+			}
+			if (!metrics.isFinished())
+			{
+				finishRun(metrics, AnonGradingRunMetrics.OUTCOME_FAILED, plan ? csvHandler.getProcessingDir() : null);
+			}
 
 			sendErrorEmail(exception);
 		}
+		finally
+		{
+			if (prefetch != null)
+			{
+				prefetch.close();
+			}
+		}
+	}
+
+	/**
+	 * Starts loading the database rows in the background; in 'sections' scope, sections are fetched in batches as the parser finds them
+	 */
+	private AnonGradingDatabasePrefetch startPrefetch(AnonGradingRunMetrics metrics)
+	{
+		if (FETCH_SCOPE_SECTIONS.equalsIgnoreCase(ServerConfigurationService.getString(PROP_FETCH_SCOPE, FETCH_SCOPE_ALL)))
+		{
+			int batchSize = Math.max(1, ServerConfigurationService.getInt(PROP_FETCH_BATCH_SIZE, FETCH_BATCH_SIZE_DEFAULT));
+			log.info("prefetching anonymous grading IDs in batches of {} sections while parsing", batchSize);
+			return AnonGradingDatabasePrefetch.fetchBySection(gradebookService, batchSize, metrics);
+		}
+		return AnonGradingDatabasePrefetch.fetchAll(gradebookService, metrics);
+	}
+
+	/**
+	 * Streams the changes to the plan report instead of the database, then finishes the run. The plan folder (CSV copy, report and metrics) is left in the processing location
+	 * @param externalSort the sorted CSV when sorting on disk (the report is then written a chunk of sections at a time); otherwise null and diff holds the changes
+	 */
+	private void writePlan(AnonGradingCSVHandler csvHandler, AnonGradingExternalSort externalSort, AnonGradingDiff diff, AnonGradingRunMetrics metrics) throws IOException
+	{
+		File planDir = csvHandler.getProcessingDir();
+		try (AnonGradingPlanReport report = new AnonGradingPlanReport(planDir))
+		{
+			if (externalSort != null)
+			{
+				syncSortedCSV(externalSort, report, metrics);
+			}
+			else
+			{
+				applyDiff(diff, report, metrics);
+			}
+			log.info("Plan: {} rows to delete, {} to update, {} to insert ({} changes); written to {}", new Object[] {report.getTotal(AnonGradingOperation.DELETE),
+						report.getTotal(AnonGradingOperation.UPDATE), report.getTotal(AnonGradingOperation.INSERT), report.getSize(), report.getFile()});
+		}
+		csvHandler.deleteSortFiles();
+		finishRun(metrics, AnonGradingRunMetrics.OUTCOME_PLANNED, planDir);
+		prunePlans(csvHandler);
 	}
 
 	/**
-	 * Lists all duplicates in a list of AnonGradingCSVRows
+	 * Prunes old plan folders; failing to only leaves them around for the next plan
 	 */
-	private List<AnonGradingCSVRow> detectDuplicates(List<AnonGradingCSVRow> csvRows)
+	private void prunePlans(AnonGradingCSVHandler csvHandler)
 	{
-		if (csvRows == null)
+		try
 		{
-			throw new IllegalArgumentException("csvRows cannot be null");
+			csvHandler.prunePlans();
 		}
+		catch (IOException e)
+		{
+			log.warn("Unable to prune the plan folders: {}", e.getMessage());
+		}
+	}
+
+	/**
+	 * Applies a diff through the writer (to the database, or to the plan report): deletions (if enabled and within the delete scope), then updates, then inserts
+	 */
+	private void applyDiff(AnonGradingDiff diff, AnonGradingChangeWriter writer, AnonGradingRunMetrics metrics) throws IOException
+	{
+		Boolean doDelete = ServerConfigurationService.getBoolean(PROP_DO_DELETIONS, Boolean.TRUE);
+		if (doDelete)
+		{
+			restrictDeletionsToScope(diff.getToDelete());
+			log.info("deleting");
+			long phaseStart = System.nanoTime();
+			int deleted = writer.apply(AnonGradingOperation.DELETE, diff.getToDelete());
+			metrics.record(AnonGradingSyncPhase.DELETE, phaseStart, deleted);
+		}
+
+		log.info("updating");
+		long phaseStart = System.nanoTime();
+		int updated = writer.apply(AnonGradingOperation.UPDATE, diff.getToUpdate());
+		metrics.record(AnonGradingSyncPhase.UPDATE, phaseStart, updated);
+
+		log.info("inserting");
+		phaseStart = System.nanoTime();
+		int inserted = writer.apply(AnonGradingOperation.INSERT, diff.getToInsert());
+		metrics.record(AnonGradingSyncPhase.INSERT, phaseStart, inserted);
+	}
 
-		//our return value
-		final List<AnonGradingCSVRow> duplicates = new ArrayList<>();
+	/**
+	 * Archives the batch, finishing the run just before the archive is closed so the metrics summary (archive phase included) is archived with the CSV
+	 */
+	private void archive(AnonGradingCSVHandler csvHandler, boolean success, AnonGradingRunMetrics metrics, String outcome) throws IOException
+	{
+		long phaseStart = System.nanoTime();
+		csvHandler.archiveCSV(success, batchDir ->
+		{
+			metrics.record(AnonGradingSyncPhase.ARCHIVE, phaseStart, 0);
+			finishRun(metrics, outcome, batchDir);
+		});
+	}
 
-		/*
-			I was going to implement this with sets, but there's no way to return all the duplicates;
-			when adding or using .contains, etc. there's no way to retrieve the object that already exists in the set
-		*/
+	/**
+	 * Records in the sync state that the batch wrote to the database, so the lookup on every node sharing the processing location reloads
+	 * @return the new database generation, or null if it couldn't be recorded
+	 */
+	private String recordDatabaseChanged(AnonGradingCSVHandler csvHandler)
+	{
+		try
+		{
+			return csvHandler.recordDatabaseChanged();
+		}
+		catch (IOException e)
+		{
+			log.warn("Unable to record that the database changed; lookups on other nodes won't reload until they expire: {}", e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Records the file fingerprint of the batch just archived as finished, so the next run can tell before parsing whether its files are the same
+	 * @param fileFingerprint null if the files weren't hashed (skipUnchanged is off), which clears the last batch's fingerprint
+	 */
+	private void recordFinishedFileFingerprint(AnonGradingCSVHandler csvHandler, String fileFingerprint)
+	{
+		try
+		{
+			csvHandler.recordFinishedFileFingerprint(fileFingerprint);
+		}
+		catch (IOException e)
+		{
+			log.warn("Unable to record the file fingerprint; the next run will prefetch even if its CSV is unchanged: {}", e.getMessage());
+		}
+	}
 
-		//indices of duplicates that have already been added to the duplicates list
-		Set<Integer> skippableIndices = new HashSet<>();
+	/**
+	 * Marks the run as over, logs its metrics and writes them into the batch folder (if there is one)
+	 */
+	private void finishRun(AnonGradingRunMetrics metrics, String outcome, File batchDir)
+	{
+		metrics.finish(outcome);
+		for (String phase : metrics.describePhases())
+		{
+			log.info(phase);
+		}
+		for (String file : metrics.describeFiles())
+		{
+			log.info(file);
+		}
 
-		for (int i = 0; i < csvRows.size() - 1; i++)
+		if (batchDir != null && batchDir.isDirectory())
 		{
-			if (skippableIndices.contains(i))
+			try
 			{
-				//i and all its duplicates have already been identified
-				continue;
+				metrics.writeSummary(batchDir);
 			}
+			catch (IOException e)
+			{
+				log.warn("Unable to write the metrics summary to {}: {}", batchDir, e.getMessage());
+			}
+		}
+	}
 
-			AnonGradingCSVRow base = csvRows.get(i);
+	/**
+	 * The CSV is sorted on disk when it is larger than the configured threshold and the fetch scope is 'sections'.
+	 * Sorting on disk only compares the CSV's sections, so in 'all' scope it would quietly stop deleting the rows of sections that have left the CSV;
+	 * an oversized CSV is then compared in memory against the whole table as usual, and a warning to switch scope is logged once per threshold setting
+	 */
+	private boolean isExternalSortDue(AnonGradingCSVHandler csvHandler)
+	{
+		long thresholdMB = ServerConfigurationService.getInt(PROP_EXTERNAL_SORT_THRESHOLD_MB, EXTERNAL_SORT_THRESHOLD_MB_DEFAULT);
+		long size = csvHandler.getCSVFileSize();
+		if (thresholdMB <= 0 || size <= thresholdMB * 1024 * 1024)
+		{
+			return false;
+		}
 
-			//True if base is a duplicate (used so we only add it once)
-			boolean baseAdded = false;
+		if (FETCH_SCOPE_SECTIONS.equalsIgnoreCase(ServerConfigurationService.getString(PROP_FETCH_SCOPE, FETCH_SCOPE_ALL)))
+		{
+			log.info("CSV is {} bytes, over the {} MB threshold; sorting on disk", size, thresholdMB);
+			return true;
+		}
 
-			for (int j = i+1; j < csvRows.size(); j++)
-			{
-				if (skippableIndices.contains(j))
-				{
-					//j has already been identified as a duplicate
-					continue;
-				}
+		if (externalSortScopeWarnedMB != thresholdMB)
+		{
+			log.warn("The CSV is {} bytes, over the {} MB threshold ({}), but it is only sorted on disk with {}={}, which limits deletions to the CSV's sections. "
+						+ "Oversized CSVs are loaded into memory and compared against the whole table instead; this is only logged once per threshold setting",
+						new Object[] {size, thresholdMB, PROP_EXTERNAL_SORT_THRESHOLD_MB, PROP_FETCH_SCOPE, FETCH_SCOPE_SECTIONS});
+			externalSortScopeWarnedMB = thresholdMB;
+		}
+		return false;
+	}
 
-				AnonGradingCSVRow other = csvRows.get(j);
-				if (base.getSectionEid().equals(other.getSectionEid()) && base.getUserEid().equals(other.getUserEid()))
+	/**
+	 * Merge joins the sorted CSV against the database a chunk of sections at a time, writing each chunk's changes before moving on to the next,
+	 * so only one chunk of CSV and database rows is ever held in memory (two when prefetching: the next chunk's database rows are loaded while the current chunk is written;
+	 * chunks never share sections, so the load can't see the writes).
+	 * Only the sections present in the CSV are fetched, as in 'sections' fetch scope (the only scope that sorts on disk).
+	 */
+	private void syncSortedCSV(AnonGradingExternalSort externalSort, AnonGradingChangeWriter writer, AnonGradingRunMetrics metrics) throws IOException
+	{
+		int sectionsPerChunk = Math.max(1, ServerConfigurationService.getInt(PROP_FETCH_BATCH_SIZE, FETCH_BATCH_SIZE_DEFAULT));
+		if (!ServerConfigurationService.getBoolean(PROP_PREFETCH, Boolean.TRUE))
+		{
+			externalSort.forEachSectionChunk(sectionsPerChunk, (sortedRows, sectionEids) ->
+					syncChunk(sortedRows, sectionEids, getExistingAnonGradingIDsForSections(sectionEids, metrics), writer, metrics));
+			return;
+		}
+
+		//chunks whose database rows are being loaded; each chunk is synced once the next one has been read and its load started
+		Deque<PrefetchedChunk> pending = new ArrayDeque<>();
+		ExecutorService fetchExecutor = AnonGradingDatabasePrefetch.newFetchExecutor();
+		try
+		{
+			externalSort.forEachSectionChunk(sectionsPerChunk, (sortedRows, sectionEids) ->
+			{
+				pending.add(new PrefetchedChunk(sortedRows, sectionEids, fetchExecutor.submit(() -> getExistingAnonGradingIDsForSections(sectionEids, metrics))));
+				if (pending.size() > 1)
 				{
-					skippableIndices.add(j);
-					if (!baseAdded)
-					{
-						//base hasn't been added yet, so add it now
-						duplicates.add(base);
-						baseAdded = true;
-					}
-					duplicates.add(other);
+					PrefetchedChunk chunk = pending.remove();
+					syncChunk(chunk.sortedRows, chunk.sectionEids, AnonGradingDatabasePrefetch.await(chunk.owlAnonGradingIDs), writer, metrics);
 				}
+			});
+			while (!pending.isEmpty())
+			{
+				PrefetchedChunk chunk = pending.remove();
+				syncChunk(chunk.sortedRows, chunk.sectionEids, AnonGradingDatabasePrefetch.await(chunk.owlAnonGradingIDs), writer, metrics);
 			}
 		}
+		finally
+		{
+			fetchExecutor.shutdownNow();
+		}
+	}
 
-		return duplicates;
+	/**
+	 * Merge joins one chunk of the sorted CSV against its database rows and writes the changes
+	 */
+	private void syncChunk(List<AnonGradingCSVRow> sortedRows, Set<String> sectionEids, List<OwlAnonGradingID> owlAnonGradingIDs, AnonGradingChangeWriter writer,
+							AnonGradingRunMetrics metrics) throws IOException
+	{
+		log.info("comparing {} rows in {} sections", sortedRows.size(), sectionEids.size());
+		long phaseStart = System.nanoTime();
+		AnonGradingDiff diff = AnonGradingDiff.computeSorted(sortedRows, owlAnonGradingIDs);
+		metrics.record(AnonGradingSyncPhase.DIFF, phaseStart, sortedRows.size() + owlAnonGradingIDs.size());
+		applyDiff(diff, writer, metrics);
 	}
 
 	/**
-	 * Gets a set of all the sectionEIDs from a list of csvRows
+	 * Fetches the database rows to compare against the CSV.
+	 * In 'sections' scope, only the rows belonging to the CSV's sections are fetched (in batches of sectionEIDs), which also limits deletions to those sections.
+	 * In 'all' scope, the entire table is fetched, so rows in sections that have disappeared from the CSV get cleaned up.
 	 */
-	private Set<String> getSectionEIDsFromCSVRows(List<AnonGradingCSVRow> csvRows)
+	private List<OwlAnonGradingID> getExistingAnonGradingIDs(AnonGradingRowStore csvRows, AnonGradingRunMetrics metrics)
 	{
-		Set<String> sectionEIDs = new HashSet<>();
-		for (AnonGradingCSVRow csvRow : csvRows)
+		String fetchScope = ServerConfigurationService.getString(PROP_FETCH_SCOPE, FETCH_SCOPE_ALL);
+		if (!FETCH_SCOPE_SECTIONS.equalsIgnoreCase(fetchScope))
 		{
-			sectionEIDs.add(csvRow.getSectionEid());
+			log.info("fetching all anonymous grading IDs");
+			long phaseStart = System.nanoTime();
+			List<OwlAnonGradingID> owlAnonGradingIDs = gradebookService.getAnonGradingIds();
+			metrics.record(AnonGradingSyncPhase.DB_FETCH, phaseStart, owlAnonGradingIDs.size());
+			return owlAnonGradingIDs;
 		}
-		return sectionEIDs;
+
+		return getExistingAnonGradingIDsForSections(csvRows.getSectionEids(), metrics);
 	}
 
 	/**
-	 * Converts a list of OwlAnonGradingIDs to a map of section eids to a map of user eids to grading IDs.
-	 * This is useful if you need to look up the grading ID for a given section and student pair
+	 * Fetches the database rows belonging to the given sections, in batches of sectionEIDs
 	 */
-	private Map<String, Map<String, OwlAnonGradingID>> convertOwlAnonGradingIDsToMaps (List<OwlAnonGradingID> gradingIDs)
+	private List<OwlAnonGradingID> getExistingAnonGradingIDsForSections(Set<String> sectionEIDs, AnonGradingRunMetrics metrics)
 	{
-		Map<String, Map<String, OwlAnonGradingID>> converted = new HashMap<String, Map<String, OwlAnonGradingID>>();
-		for (OwlAnonGradingID current : gradingIDs)
+		long phaseStart = System.nanoTime();
+		List<String> csvSectionEIDs = new ArrayList<>(sectionEIDs);
+		int batchSize = Math.max(1, ServerConfigurationService.getInt(PROP_FETCH_BATCH_SIZE, FETCH_BATCH_SIZE_DEFAULT));
+		log.info("fetching anonymous grading IDs for {} sections in batches of {}", csvSectionEIDs.size(), batchSize);
+
+		List<OwlAnonGradingID> owlAnonGradingIDs = new ArrayList<>();
+		for (int i = 0; i < csvSectionEIDs.size(); i += batchSize)
 		{
-			String currentSectionEid = current.getSectionEid();
-			String currentUserEid = current.getUserEid();
-			Map<String, OwlAnonGradingID> userToGradingID = converted.get(currentSectionEid);
-			OwlAnonGradingID convertedGradingID = null;
-			if (userToGradingID == null)
-			{
-				//create it
-				userToGradingID = new HashMap<String, OwlAnonGradingID>();
-				converted.put(currentSectionEid, userToGradingID);
-			}
-			else
-			{
-				convertedGradingID = userToGradingID.get(currentUserEid);
-			}
+			Set<String> batch = new HashSet<>(csvSectionEIDs.subList(i, Math.min(i + batchSize, csvSectionEIDs.size())));
+			owlAnonGradingIDs.addAll(gradebookService.getAnonGradingIdsForSectionEids(batch));
+		}
+		metrics.record(AnonGradingSyncPhase.DB_FETCH, phaseStart, owlAnonGradingIDs.size());
+		return owlAnonGradingIDs;
+	}
+
+	/**
+	 * In delta mode, a full reconciliation against the database is still done periodically as a safety net, whenever a batch is being resumed,
+	 * and while a batch that failed or was abandoned part way through writing hasn't been followed by one that finished: the delta is taken against the last finished batch,
+	 * so it would miss the sections the unfinished batch wrote to and the current CSV sets back
+	 */
+	private boolean isFullReconciliationDue(AnonGradingCSVHandler csvHandler) throws IOException
+	{
+		if (!SYNC_MODE_DELTA.equalsIgnoreCase(ServerConfigurationService.getString(PROP_SYNC_MODE, SYNC_MODE_FULL)) || csvHandler.isResumedBatch())
+		{
+			return true;
+		}
 
-			if (convertedGradingID == null)
+		String unfinishedWrites = csvHandler.getUnfinishedWrites();
+		if (unfinishedWrites != null)
+		{
+			log.info("Batch {} didn't finish writing to the database; doing a full reconciliation", unfinishedWrites);
+			return true;
+		}
+
+		long interval = TimeUnit.DAYS.toMillis(ServerConfigurationService.getInt(PROP_FULL_RECONCILIATION_DAYS, FULL_RECONCILIATION_DAYS_DEFAULT));
+		long lastFullReconciliation = csvHandler.getLastFullReconciliation();
+		if (System.currentTimeMillis() - lastFullReconciliation >= interval)
+		{
+			log.info("Last full reconciliation was at {}; doing a full reconciliation", new Date(lastFullReconciliation));
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Diffs the CSV against the last finished batch's CSV, and then diffs only the sections that changed against the database.
+	 * The fetch scope applies as it does to a full reconciliation: in 'sections' scope, a section that has left the CSV isn't fetched, so its rows are kept;
+	 * in 'all' scope, it is fetched and its rows deleted
+	 * @return the diff for the changed sections, or null if there is no previous CSV to compare against
+	 */
+	private AnonGradingDiff computeDeltaDiff(AnonGradingCSVHandler csvHandler, AnonGradingRowStore csvRows, AnonGradingRunMetrics metrics)
+	{
+		long phaseStart = System.nanoTime();
+		AnonGradingRowStore previousRows = csvHandler.getPreviousCSVRows();
+		if (previousRows == null)
+		{
+			log.info("No previous CSV to compare against; doing a full reconciliation");
+			return null;
+		}
+		metrics.record(AnonGradingSyncPhase.PARSE, phaseStart, previousRows.size());
+
+		//duplicates were never synced, so leave them out of the previous CSV too
+		phaseStart = System.nanoTime();
+		previousRows = new AnonGradingDuplicateIndex(previousRows).getUniqueRows();
+		AnonGradingCSVDelta delta = AnonGradingCSVDelta.compute(previousRows, csvRows);
+		Set<String> touchedSectionEids = new HashSet<>(delta.getTouchedSectionEids());
+		if (FETCH_SCOPE_SECTIONS.equalsIgnoreCase(ServerConfigurationService.getString(PROP_FETCH_SCOPE, FETCH_SCOPE_ALL)))
+		{
+			int touched = touchedSectionEids.size();
+			touchedSectionEids.retainAll(csvRows.getSectionEids());
+			if (touchedSectionEids.size() < touched)
 			{
-				//add it to userToGrade
-				userToGradingID.put(currentUserEid, current);
+				log.info("{} changed sections have left the CSV; their rows are kept, as fetchScope={} only compares the CSV's sections", touched - touchedSectionEids.size(), FETCH_SCOPE_SECTIONS);
 			}
 		}
+		AnonGradingRowStore touchedRows = csvRows.retainSections(touchedSectionEids);
+		metrics.record(AnonGradingSyncPhase.DIFF, phaseStart, previousRows.size() + csvRows.size());
 
-		return converted;
+		List<OwlAnonGradingID> owlAnonGradingIDs = touchedSectionEids.isEmpty() ? new ArrayList<>() : getExistingAnonGradingIDsForSections(touchedSectionEids, metrics);
+		phaseStart = System.nanoTime();
+		AnonGradingDiff diff = AnonGradingDiff.compute(touchedRows, owlAnonGradingIDs);
+		metrics.record(AnonGradingSyncPhase.DIFF, phaseStart, touchedRows.size() + owlAnonGradingIDs.size());
+		return diff;
+	}
+
+	/**
+	 * If sectionEID prefixes are configured for the delete scope, removes any row from toDelete whose section doesn't match one of them
+	 */
+	private void restrictDeletionsToScope(Set<OwlAnonGradingID> toDelete)
+	{
+		String[] sectionPrefixes = ServerConfigurationService.getStrings(PROP_DELETE_SECTION_PREFIXES);
+		if (sectionPrefixes != null && sectionPrefixes.length > 0)
+		{
+			int before = toDelete.size();
+			toDelete.removeIf(gradingID -> !StringUtils.startsWithAny(gradingID.getSectionEid(), sectionPrefixes));
+			log.info("delete scope {} excluded {} of {} rows from deletion", Arrays.toString(sectionPrefixes), before - toDelete.size(), before);
+		}
 	}
 
 	/**
 	 * Sends an email with the given exception's message to the recipients specified in sakai.properties
 	 */
 	private void sendErrorEmail(Exception exception) throws JobExecutionException
+	{
+		sendErrorEmail(exception.getMessage());
+	}
+
+	/**
+	 * Sends an email with the given error message to the recipients specified in sakai.properties
+	 */
+	private void sendErrorEmail(String error) throws JobExecutionException
 	{
 		Map<String, String> replacementValues = new HashMap<>();
-		replacementValues.put("error", exception.getMessage());
+		replacementValues.put("error", error);
 		replacementValues.put("node", ServerConfigurationService.getServerId());
 
 		try
@@ -372,32 +1012,13 @@ public class SyncAnonGradingIDs implements Job
 	}
 
 	/**
-	 * Sends an email with the given duplicates to the recipients specified in sakai.properties. If duplicates is large, it directs the recipients to the logs.
+	 * Sends an email summarising the duplicates (per-section counts) to the recipients specified in sakai.properties, pointing them at the full report
 	 */
-	private void sendDuplicatesEmail(List<AnonGradingCSVRow> duplicates) throws JobExecutionException
+	private void sendDuplicatesEmail(AnonGradingDuplicateReport report, File batchDir) throws JobExecutionException
 	{
-		final int threshold = 10;
-		String key = "duplicates";
 		Map<String, String> replacementValues = new HashMap<>();
-		if (duplicates.size() > threshold)
-		{
-			replacementValues.put(key, "Please see the logs for more details; current time: " + new Date().toString());
-		}
-		else
-		{
-			String strDuplicates = "";
-			Iterator<AnonGradingCSVRow> itDuplicates = duplicates.iterator();
-			while (itDuplicates.hasNext())
-			{
-				AnonGradingCSVRow current = itDuplicates.next();
-				strDuplicates = strDuplicates + current.toString();
-				if (itDuplicates.hasNext())
-				{
-					strDuplicates = strDuplicates + "\n";
-				}
-			}
-			replacementValues.put(key, strDuplicates);
-		}
+		replacementValues.put("duplicates", report.summarize(DUPLICATE_SUMMARY_SECTIONS) + "\n\nEvery duplicate row, with its file and line number, is listed in "
+								+ AnonGradingDuplicateReport.REPORT_FILE_NAME + " in batch " + batchDir.getName() + " (archived with the batch once the run completes).");
 		try
 		{
 			EmailTemplateHelper.sendMail(DUPLICATE_EMAIL_TEMPLATE_KEY, replacementValues, new InternetAddress(EMAIL_NO_REPLY_ADDRESS), recipients.toArray(new InternetAddress[0]));
@@ -407,4 +1028,21 @@ public class SyncAnonGradingIDs implements Job
 			throw new JobExecutionException("An error occured while sending email", emailException, false);
 		}
 	}
+
+	/**
+	 * A chunk of the sorted CSV along with the pending load of its database rows
+	 */
+	private static final class PrefetchedChunk
+	{
+		private final List<AnonGradingCSVRow> sortedRows;
+		private final Set<String> sectionEids;
+		private final Future<List<OwlAnonGradingID>> owlAnonGradingIDs;
+
+		private PrefetchedChunk(List<AnonGradingCSVRow> sortedRows, Set<String> sectionEids, Future<List<OwlAnonGradingID>> owlAnonGradingIDs)
+		{
+			this.sortedRows = sortedRows;
+			this.sectionEids = sectionEids;
+			this.owlAnonGradingIDs = owlAnonGradingIDs;
+		}
+	}
 } // end class